@@ -0,0 +1,144 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes 4mc/4mz block frames to the underlying stream on a background thread, so that the writer
+ * can compress next block while previous one goes to disk or to the HDFS pipeline.
+ * Frames are written in order; at most maxInFlight frames wait to be written, which caps the memory used.
+ */
+class BackgroundBlockWriter {
+
+    private static final AtomicInteger WRITER_ID = new AtomicInteger();
+
+    private final OutputStream out;
+    private final int frameSize;
+    private final int maxInFlight;
+
+    private final ExecutorService executor;
+    private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+    private final ArrayDeque<byte[]> freeFrames = new ArrayDeque<byte[]>();
+
+    /**
+     * @param out         stream frames are written to
+     * @param frameSize   size of frame buffers, block header plus max compressed block size
+     * @param maxInFlight max number of frames waiting to be written
+     */
+    BackgroundBlockWriter(OutputStream out, int frameSize, int maxInFlight) {
+        this.out = out;
+        this.frameSize = frameSize;
+        this.maxInFlight = maxInFlight;
+
+        final String name = "4mc-writer-" + WRITER_ID.incrementAndGet();
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Returns a frame buffer to fill, recycling written ones: waits for the oldest frame
+     * only when maxInFlight frames are still to be written.
+     */
+    byte[] nextFrame() throws IOException {
+        while (!inFlight.isEmpty() && (inFlight.size() >= maxInFlight || inFlight.peek().isDone())) {
+            freeFrames.add(take());
+        }
+        byte[] frame = freeFrames.poll();
+        return frame != null ? frame : new byte[frameSize];
+    }
+
+    /**
+     * Schedules the write of given frame, which must not be touched until given back by nextFrame.
+     */
+    void write(final byte[] frame, final int length) throws IOException {
+        inFlight.add(executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                out.write(frame, 0, length);
+                return frame;
+            }
+        }));
+    }
+
+    /**
+     * Waits for all scheduled frames to be written, rethrowing any write failure.
+     */
+    void drain() throws IOException {
+        while (!inFlight.isEmpty()) {
+            freeFrames.add(take());
+        }
+    }
+
+    private byte[] take() throws IOException {
+        Future<byte[]> head = inFlight.poll();
+        try {
+            return head.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for block write");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Block write failed", cause);
+        }
+    }
+
+    /**
+     * Stops the writer thread, dropping frames not yet written.
+     */
+    void close() {
+        for (Future<byte[]> f : inFlight) {
+            f.cancel(false);
+        }
+        inFlight.clear();
+        freeFrames.clear();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,288 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stream of what a split of a 4mc/4mz file needs, the file header followed by the blocks starting in the split,
+ * fetched with few large ranged reads running in parallel: on object stores each read is a request with high latency.
+ * Neighbour blocks are coalesced into ranges of up to maxRangeSize bytes, with the header too when close enough.
+ * Ranges are read ahead with vectored reads where Hadoop has them, otherwise with positioned reads run by a
+ * pool of threads; at most twice as many ranges as threads are held in memory.
+ */
+class BlockRangeInputStream extends InputStream {
+
+    static final int DEFAULT_MAX_RANGE_SIZE = 8 * 1024 * 1024;
+    static final int DEFAULT_MAX_GAP = 256 * 1024;
+
+    private static final AtomicInteger READER_ID = new AtomicInteger();
+
+    /**
+     * File range read with a single request.
+     */
+    static class Range {
+        final long offset;
+        final int length;
+
+        Range(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        long end() {
+            return offset + length;
+        }
+    }
+
+    private final FSDataInputStream in;
+    private final List<Range> ranges;
+    private final int threads;
+    private final int depth;
+    private VectoredReads vectoredReads;
+    private ExecutorService executor;
+    private final LinkedList<Future<ByteBuffer>> inFlight = new LinkedList<Future<ByteBuffer>>();
+    private int submitted = 0;
+
+    // header is [0, headerEnd), blocks are [dataStart, dataEnd)
+    private final long headerEnd;
+    private final long dataStart;
+    private final long dataEnd;
+    private long pos = 0;
+
+    private Range range;
+    private ByteBuffer rangeData;
+    private int rangeIndex = -1;
+    private final byte[] oneByte = new byte[1];
+
+    /**
+     * @param in           file stream, read with positioned or vectored reads only
+     * @param blockOffsets compressed offsets of blocks, from footer index
+     * @param fileLength   length of the file, end of last block
+     * @param start        split start: blocks starting in [start, end) are read
+     * @param end          split end
+     * @param threads      number of ranges read at the same time
+     */
+    BlockRangeInputStream(FSDataInputStream in, long[] blockOffsets, long fileLength, long start, long end, int threads) {
+        this(in, blockOffsets, fileLength, start, end, threads, DEFAULT_MAX_GAP, DEFAULT_MAX_RANGE_SIZE);
+    }
+
+    BlockRangeInputStream(FSDataInputStream in, long[] blockOffsets, long fileLength, long start, long end, int threads,
+                          long maxGap, int maxRangeSize) {
+        this.in = in;
+        this.threads = Math.max(1, threads);
+        this.depth = 2 * this.threads;
+        this.vectoredReads = VectoredReads.of(in);
+
+        int first = firstBlockFrom(blockOffsets, start);
+        int last = firstBlockFrom(blockOffsets, end);
+        if (blockOffsets.length == 0) {
+            // no index: whole file, as small as an empty one
+            headerEnd = dataStart = dataEnd = fileLength;
+        } else {
+            headerEnd = blockOffsets[0];
+            dataStart = first < last ? blockOffsets[first] : headerEnd;
+            dataEnd = first < last ? (last < blockOffsets.length ? blockOffsets[last] : fileLength) : headerEnd;
+        }
+        this.ranges = plan(blockOffsets, fileLength, start, end, maxGap, maxRangeSize);
+    }
+
+    /**
+     * Plans the ranges to read for the split [start, end): the header, then the blocks starting in the split,
+     * neighbours coalesced as long as the gap between them is at most maxGap bytes and the range they make up
+     * is at most maxRangeSize bytes. The last block of the file extends to file end.
+     */
+    static List<Range> plan(long[] blockOffsets, long fileLength, long start, long end, long maxGap, int maxRangeSize) {
+        List<Range> ranges = new ArrayList<Range>();
+        if (blockOffsets.length == 0) {
+            add(ranges, 0, fileLength, maxGap, maxRangeSize);
+            return ranges;
+        }
+        add(ranges, 0, blockOffsets[0], maxGap, maxRangeSize);
+        int last = firstBlockFrom(blockOffsets, end);
+        for (int i = firstBlockFrom(blockOffsets, start); i < last; ++i) {
+            long blockEnd = i + 1 < blockOffsets.length ? blockOffsets[i + 1] : fileLength;
+            add(ranges, blockOffsets[i], blockEnd, maxGap, maxRangeSize);
+        }
+        return ranges;
+    }
+
+    List<Range> getRanges() {
+        return ranges;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(oneByte, 0, 1) < 0 ? -1 : oneByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (pos == headerEnd) {
+            pos = dataStart;
+        }
+        if (pos >= dataEnd) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (range == null || pos >= range.end()) {
+            nextRange();
+        }
+        long limit = Math.min(range.end(), pos < headerEnd ? headerEnd : dataEnd);
+        int n = (int) Math.min(len, limit - pos);
+        ByteBuffer data = rangeData.duplicate();
+        data.position((int) (pos - range.offset));
+        data.get(b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<ByteBuffer> data : inFlight) {
+            data.cancel(true);
+        }
+        inFlight.clear();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        rangeData = null;
+        in.close();
+    }
+
+    /**
+     * Moves to the data of next range, waiting for it, and keeps ranges read ahead.
+     */
+    private void nextRange() throws IOException {
+        fill();
+        Future<ByteBuffer> data = inFlight.poll();
+        if (data == null) {
+            throw new IOException("Range read missing at offset " + pos);
+        }
+        range = ranges.get(++rangeIndex);
+        try {
+            rangeData = data.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for range read");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Range read failed", cause);
+        }
+        if (rangeData.remaining() < range.length) {
+            throw new IOException("Short range read at offset " + range.offset);
+        }
+        fill();
+    }
+
+    private void fill() throws IOException {
+        int n = Math.min(depth - inFlight.size(), ranges.size() - submitted);
+        if (n <= 0) {
+            return;
+        }
+        List<Range> batch = ranges.subList(submitted, submitted + n);
+        List<Future<ByteBuffer>> data = vectoredReads != null ? vectoredReads.read(batch) : null;
+        if (data == null) {
+            // stream has no vectored reads after all
+            vectoredReads = null;
+            data = new ArrayList<Future<ByteBuffer>>(n);
+            for (final Range r : batch) {
+                data.add(executor().submit(new Callable<ByteBuffer>() {
+                    public ByteBuffer call() throws IOException {
+                        byte[] b = new byte[r.length];
+                        in.readFully(r.offset, b, 0, r.length);
+                        return ByteBuffer.wrap(b);
+                    }
+                }));
+            }
+        }
+        inFlight.addAll(data);
+        submitted += n;
+    }
+
+    private ExecutorService executor() {
+        if (executor == null) {
+            final String name = "4mc-range-reader-" + READER_ID.incrementAndGet();
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger threadId = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name + "-" + threadId.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private static void add(List<Range> ranges, long offset, long end, long maxGap, int maxRangeSize) {
+        if (!ranges.isEmpty()) {
+            Range last = ranges.get(ranges.size() - 1);
+            if (offset - last.end() <= maxGap && end - last.offset <= maxRangeSize) {
+                ranges.set(ranges.size() - 1, new Range(last.offset, (int) (end - last.offset)));
+                return;
+            }
+        }
+        ranges.add(new Range(offset, (int) (end - offset)));
+    }
+
+    /**
+     * Index of first block starting at pos or after it.
+     */
+    private static int firstBlockFrom(long[] blockOffsets, long pos) {
+        int i = Arrays.binarySearch(blockOffsets, pos);
+        return i >= 0 ? i : -i - 1;
+    }
+}
@@ -0,0 +1,399 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads and decompresses next 4mc/4mz blocks on a background thread, while the reader consumes the current one.
+ * Given more than one decoder, blocks are read by the background thread and decompressed concurrently
+ * on a pool of as many worker threads, so that a single stream can use several cores.
+ * Blocks are handed back in file order; at most depth blocks are read ahead, plus the one being consumed,
+ * and their buffers are recycled: memory is capped to depth + 1 block buffers.
+ * Once started, the underlying stream belongs to the read-ahead thread until close().
+ */
+class BlockReadAhead {
+
+    /**
+     * Decompresses a whole block, thread confined: it is used by one thread at a time.
+     */
+    interface BlockDecoder {
+        /**
+         * Decompresses compressedLen bytes of src into exactly uncompressedLen bytes of dst,
+         * verifying them against the block checksum first when verify is true.
+         */
+        void decode(byte[] src, int compressedLen, int checksum, boolean verify, byte[] dst, int uncompressedLen)
+                throws IOException;
+    }
+
+    /**
+     * An uncompressed block, consumed by the reader from position up to length.
+     */
+    static class Block {
+        byte[] data = new byte[0];
+        int length;
+        int position;
+        // compressed bytes of the block frame, header included
+        int frameLength;
+        boolean last;
+
+        private byte[] compressed = new byte[0];
+        private int compressedLength;
+        private int checksum;
+        private boolean verify;
+        // set while the block is decompressed by a worker thread
+        private Future<Block> decoded;
+
+        int remaining() {
+            return length - position;
+        }
+
+        int read(byte[] b, int off, int len) {
+            int n = Math.min(len, remaining());
+            System.arraycopy(data, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        int read(ByteBuffer dst) {
+            int n = Math.min(dst.remaining(), remaining());
+            dst.put(data, position, n);
+            position += n;
+            return n;
+        }
+    }
+
+    private static final AtomicInteger READER_ID = new AtomicInteger();
+    // bounded wait for threads to stop on close, as a read of underlying stream may not be interrupted
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    private final InputStream in;
+    private final BlockDecoder decoder;
+    private final ChecksumVerification verification;
+    private final int maxBlockSize;
+
+    private final ExecutorService executor;
+    // parallel decompression only: worker threads and their decoders, one each
+    private final ExecutorService decodeExecutor;
+    private final BlockingQueue<BlockDecoder> idleDecoders;
+    private final ArrayDeque<Future<Block>> inFlight = new ArrayDeque<Future<Block>>();
+    private final ArrayDeque<Block> freeBlocks = new ArrayDeque<Block>();
+    private final byte[] header = new byte[12];
+
+    // set by the read-ahead thread once end of stream is met, next tasks do not touch the stream any more
+    private volatile boolean ended;
+    private long allocatedBytes;
+    // first failure, thrown again by any later take(): the blocks after it must not be handed out as next ones
+    private IOException failure;
+
+    /**
+     * @param in           stream positioned at a block boundary
+     * @param decoder      decompresses blocks on the read-ahead thread
+     * @param depth        number of blocks read ahead
+     * @param maxBlockSize max size of blocks, compressed or not
+     */
+    BlockReadAhead(InputStream in, BlockDecoder decoder, int depth, int maxBlockSize) {
+        this(in, Collections.singletonList(decoder), depth, maxBlockSize, new ChecksumVerification(1));
+    }
+
+    /**
+     * @param in           stream positioned at a block boundary
+     * @param decoders     decompress blocks, on the read-ahead thread if only one, otherwise on a worker thread each
+     * @param depth        number of blocks read ahead, should be at least the number of decoders
+     * @param maxBlockSize max size of blocks, compressed or not
+     * @param verification tells which blocks get their checksum verified, used by the read-ahead thread only
+     */
+    BlockReadAhead(InputStream in, List<BlockDecoder> decoders, int depth, int maxBlockSize,
+                   ChecksumVerification verification) {
+        this.in = in;
+        this.decoder = decoders.get(0);
+        this.maxBlockSize = maxBlockSize;
+        this.verification = verification;
+
+        final String name = "4mc-reader-" + READER_ID.incrementAndGet();
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (decoders.size() > 1) {
+            idleDecoders = new ArrayBlockingQueue<BlockDecoder>(decoders.size(), false, decoders);
+            decodeExecutor = Executors.newFixedThreadPool(decoders.size(), new ThreadFactory() {
+                private final AtomicInteger threadId = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name + "-decompressor-" + threadId.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            idleDecoders = null;
+            decodeExecutor = null;
+        }
+        while (inFlight.size() < depth) {
+            submit(new Block());
+        }
+    }
+
+    /**
+     * Returns next block, waiting for it to be decompressed if needed, or null at end of stream.
+     * The block returned before is recycled: it must not be used any more.
+     * Once a block fails to be read or decompressed, every call throws the same failure.
+     */
+    Block take(Block consumed) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (consumed != null) {
+            freeBlocks.add(consumed);
+        }
+        Future<Block> head = inFlight.poll();
+        if (head == null) {
+            return null;
+        }
+        Block block;
+        try {
+            block = head.get();
+            if (block.decoded != null) {
+                block.decoded.get();
+                block.decoded = null;
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for block read-ahead");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            failure = cause instanceof IOException ? (IOException) cause : new IOException("Block read-ahead failed", cause);
+            throw failure;
+        }
+        if (block.last) {
+            inFlight.clear();
+            return null;
+        }
+        Block free = freeBlocks.poll();
+        submit(free != null ? free : new Block());
+        return block;
+    }
+
+    /**
+     * Bytes currently held by block buffers, bounded by (depth + 1) * 2 * maxBlockSize.
+     */
+    synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private void submit(final Block block) {
+        inFlight.add(executor.submit(new Callable<Block>() {
+            public Block call() throws Exception {
+                readBlock(block);
+                return block;
+            }
+        }));
+    }
+
+    /**
+     * Hands decompression of a block just read to a worker thread.
+     */
+    private void submitDecode(final Block block, final int uncompressedLen) {
+        final byte[] dst = ensureData(block, uncompressedLen);
+        block.decoded = decodeExecutor.submit(new Callable<Block>() {
+            public Block call() throws Exception {
+                BlockDecoder d = idleDecoders.take();
+                try {
+                    d.decode(block.compressed, block.compressedLength, block.checksum, block.verify, dst, uncompressedLen);
+                } finally {
+                    idleDecoders.add(d);
+                }
+                return block;
+            }
+        });
+    }
+
+    /**
+     * Same logic of the stream serial path: a block stored with compressed size not smaller than
+     * uncompressed size is plain data, premature end of stream is end of data.
+     */
+    private void readBlock(Block block) throws IOException {
+        block.position = 0;
+        block.length = 0;
+        block.frameLength = 0;
+        block.decoded = null;
+        block.last = ended;
+        if (ended) {
+            return;
+        }
+
+        int uncompressedLen, compressedLen, checksum;
+        try {
+            readFully(in, header, 0, 4);
+            uncompressedLen = getInt(header, 0);
+            if (uncompressedLen > maxBlockSize) {
+                throw new IOException("Uncompressed length " + uncompressedLen +
+                        " exceeds max block size " + maxBlockSize);
+            }
+            if (uncompressedLen == 0) {
+                // end mark
+                markEnded(block);
+                return;
+            }
+            readFully(in, header, 4, 8);
+            compressedLen = getInt(header, 4);
+            checksum = getInt(header, 8);
+            if (compressedLen > maxBlockSize) {
+                throw new IOException("Compressed length " + compressedLen +
+                        " exceeds max block size " + maxBlockSize);
+            }
+
+            boolean uncompressed = compressedLen >= uncompressedLen;
+            byte[] src = uncompressed ? ensureData(block, compressedLen) : ensureCompressed(block, compressedLen);
+            readFully(in, src, 0, compressedLen);
+            // compressed blocks are verified by the decoder, along with decompression
+            boolean verify = verification.verifyNext();
+            if (uncompressed) {
+                if (verify && checksum != Lz4Decompressor.xxhash32(src, 0, compressedLen, 0)) {
+                    throw new IOException("Corrupted uncompressed block (invalid checksum)");
+                }
+                block.length = compressedLen;
+            } else if (decodeExecutor != null) {
+                block.compressedLength = compressedLen;
+                block.checksum = checksum;
+                block.verify = verify;
+                block.length = uncompressedLen;
+                submitDecode(block, uncompressedLen);
+            } else {
+                decoder.decode(src, compressedLen, checksum, verify, ensureData(block, uncompressedLen), uncompressedLen);
+                block.length = uncompressedLen;
+            }
+            block.frameLength = 12 + compressedLen;
+        } catch (EOFException e) {
+            markEnded(block);
+        }
+    }
+
+    private void markEnded(Block block) {
+        ended = true;
+        block.last = true;
+    }
+
+    private byte[] ensureData(Block block, int size) {
+        if (block.data.length < size) {
+            account(size - block.data.length);
+            block.data = new byte[size];
+        }
+        return block.data;
+    }
+
+    private byte[] ensureCompressed(Block block, int size) {
+        if (block.compressed.length < size) {
+            account(size - block.compressed.length);
+            block.compressed = new byte[size];
+        }
+        return block.compressed;
+    }
+
+    private synchronized void account(int bytes) {
+        allocatedBytes += bytes;
+    }
+
+    /**
+     * Stops the read-ahead and worker threads, dropping blocks not yet consumed.
+     * The read-ahead thread may still be blocked reading the underlying stream: once that is closed,
+     * awaitTermination() makes sure decoders are not used any more.
+     */
+    void close() {
+        for (Future<Block> f : inFlight) {
+            f.cancel(true);
+        }
+        inFlight.clear();
+        freeBlocks.clear();
+        executor.shutdownNow();
+        if (decodeExecutor != null) {
+            decodeExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits a bounded time for the read-ahead and worker threads to be gone, after close().
+     * Returns false if a thread is still running, e.g. stuck reading a stream that closing does not unblock:
+     * decoders may then still be in use, and must not be released.
+     */
+    boolean awaitTermination() throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CLOSE_TIMEOUT_SECONDS);
+        try {
+            // underlying stream read in progress fails as soon as the stream is closed, usually
+            if (!executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+            return decodeExecutor == null ||
+                    decodeExecutor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while stopping block read-ahead");
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            int ret = in.read(buf, off, len);
+            if (ret < 0) {
+                throw new EOFException("Premature EOF from inputStream");
+            }
+            len -= ret;
+            off += ret;
+        }
+    }
+
+    private static int getInt(byte[] buf, int offset) {
+        return ((0xFF & buf[offset]) << 24) | ((0xFF & buf[offset + 1]) << 16) |
+                ((0xFF & buf[offset + 2]) << 8) | (0xFF & buf[offset + 3]);
+    }
+}
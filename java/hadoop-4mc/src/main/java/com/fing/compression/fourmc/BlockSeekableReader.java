@@ -0,0 +1,208 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Seekable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Random access reads of a 4mc/4mz file by uncompressed position.
+ * Compressed offsets of blocks come from the footer index, their uncompressed sizes from a version 2 footer
+ * or else from block headers, read with positioned reads only as far as needed to locate the target position.
+ * A seek decodes just the block holding the target, then reads go on sequentially over next blocks.
+ */
+abstract class BlockSeekableReader extends InputStream implements Seekable {
+
+    private final FSDataInputStream in;
+    private final InputStream stream;
+    private final long[] blockOffsets;
+
+    // uncompressed position of block starts, known for the first knownStarts entries;
+    // entry blockOffsets.length, once known, is the uncompressed length of the file
+    private final long[] blockStarts;
+    private int knownStarts = 1;
+
+    private final byte[] header = new byte[4];
+    private byte[] skipBuf;
+    private final byte[] oneByte = new byte[1];
+    private long pos;
+
+    /**
+     * @param in           underlying file stream, read through the 4mc/4mz stream and with positioned reads
+     * @param stream       4mc/4mz stream reading in, header already read
+     * @param blockOffsets compressed offsets of blocks, from footer index
+     * @param blockStarts  uncompressed positions of blocks followed by file length, from a version 2 footer index,
+     *                     or null to read them from block headers
+     */
+    BlockSeekableReader(FSDataInputStream in, InputStream stream, long[] blockOffsets, long[] blockStarts) {
+        this.in = in;
+        this.stream = stream;
+        this.blockOffsets = blockOffsets;
+        if (blockStarts != null) {
+            this.blockStarts = blockStarts;
+            this.knownStarts = blockStarts.length;
+        } else {
+            this.blockStarts = new long[blockOffsets.length + 1];
+        }
+    }
+
+    /**
+     * Moves the 4mc/4mz stream to the block starting at the given compressed offset.
+     */
+    protected abstract void seekToBlock(long offset) throws IOException;
+
+    /**
+     * Uncompressed length of the file; all block headers are read the first time.
+     */
+    public long getLength() throws IOException {
+        while (knownStarts <= blockOffsets.length) {
+            addNextBlockStart();
+        }
+        return blockStarts[blockOffsets.length];
+    }
+
+    /**
+     * Number of blocks of the file.
+     */
+    public int getNumberOfBlocks() {
+        return blockOffsets.length;
+    }
+
+    /**
+     * Moves to the given uncompressed position, decoding only the block holding it.
+     * Forward seeks within the current block go on decoding it.
+     */
+    public void seek(long target) throws IOException {
+        if (target < 0) {
+            throw new EOFException("Cannot seek to negative position " + target);
+        }
+        int block = findBlock(target);
+        if (block == blockOffsets.length && target > blockStarts[block]) {
+            throw new EOFException("Cannot seek to " + target + " after end of data " + blockStarts[block]);
+        }
+        if (target < pos || block != findBlock(pos)) {
+            if (block < blockOffsets.length) {
+                seekToBlock(blockOffsets[block]);
+            }
+            pos = blockStarts[block];
+        }
+        skipFully(target - pos);
+    }
+
+    public long getPos() {
+        return pos;
+    }
+
+    public boolean seekToNewSource(long targetPos) {
+        return false;
+    }
+
+    /**
+     * Reads len bytes at the given uncompressed position, as seek followed by a read of len bytes.
+     */
+    public void readFully(long position, byte[] b, int off, int len) throws IOException {
+        seek(position);
+        while (len > 0) {
+            int n = read(b, off, len);
+            if (n < 0) {
+                throw new EOFException("Premature end of data at " + pos);
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(oneByte, 0, 1) < 0 ? -1 : oneByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (knownStarts > blockOffsets.length && pos >= blockStarts[blockOffsets.length]) {
+            return -1;
+        }
+        int n = stream.read(b, off, len);
+        if (n > 0) {
+            pos += n;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+
+    private void skipFully(long n) throws IOException {
+        if (n > 0 && skipBuf == null) {
+            skipBuf = new byte[64 * 1024];
+        }
+        while (n > 0) {
+            int ret = read(skipBuf, 0, (int) Math.min(n, skipBuf.length));
+            if (ret < 0) {
+                throw new EOFException("Premature end of data at " + pos);
+            }
+            n -= ret;
+        }
+    }
+
+    /**
+     * Returns the block holding the given position, or the number of blocks when at end of data.
+     * Block starts are learnt from block headers, up to the one after pos.
+     */
+    private int findBlock(long target) throws IOException {
+        while (knownStarts <= blockOffsets.length && blockStarts[knownStarts - 1] <= target) {
+            addNextBlockStart();
+        }
+        int i = Arrays.binarySearch(blockStarts, 0, knownStarts, target);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private void addNextBlockStart() throws IOException {
+        int block = knownStarts - 1;
+        in.readFully(blockOffsets[block], header, 0, 4);
+        int uncompressedSize = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16) |
+                ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+        if (uncompressedSize <= 0) {
+            throw new IOException("Invalid block header at offset " + blockOffsets[block]);
+        }
+        blockStarts[knownStarts++] = blockStarts[block] + uncompressedSize;
+    }
+}
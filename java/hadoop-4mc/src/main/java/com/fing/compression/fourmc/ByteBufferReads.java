@@ -0,0 +1,97 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads from an input stream straight into a ByteBuffer, when the stream supports it:
+ * on Hadoop 2 FSDataInputStream has read(ByteBuffer), served with no copy by ByteBufferReadable streams such as HDFS.
+ * The method is looked up by reflection, as Hadoop 1 API has none of them.
+ */
+class ByteBufferReads {
+
+    private final InputStream in;
+    private final Method read;
+
+    private ByteBufferReads(InputStream in, Method read) {
+        this.in = in;
+        this.read = read;
+    }
+
+    /**
+     * Returns ByteBuffer reads for the given stream, or null if it has no read(ByteBuffer) method.
+     */
+    static ByteBufferReads of(InputStream in) {
+        try {
+            return new ByteBufferReads(in, in.getClass().getMethod("read", ByteBuffer.class));
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fills dst from its position to its limit, returning false if the underlying stream turns out not to support
+     * ByteBuffer reads: in such case nothing has been read.
+     */
+    boolean readFully(ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            int ret;
+            try {
+                ret = (Integer) read.invoke(in, dst);
+            } catch (IllegalAccessException e) {
+                return false;
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UnsupportedOperationException) {
+                    // FSDataInputStream over a stream that is not ByteBufferReadable
+                    return false;
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("ByteBuffer read failed", cause);
+            }
+            if (ret < 0) {
+                throw new EOFException("Premature EOF from inputStream");
+            }
+        }
+        return true;
+    }
+}
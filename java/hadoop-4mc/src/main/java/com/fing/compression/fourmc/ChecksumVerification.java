@@ -0,0 +1,105 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc;
+
+/**
+ * Checksum verification policy of block reads: every block (the default), one block every few blocks,
+ * or none at all, for data whose integrity is already checked end to end (as HDFS does with its CRCs).
+ * Counts blocks read and blocks actually verified; blocks go through it from one thread at a time.
+ */
+public class ChecksumVerification {
+
+    public static final String ALWAYS = "always";
+    public static final String SAMPLED = "sampled";
+    public static final String OFF = "off";
+
+    // verifies block 0, interval, 2 * interval...; 0 means never, 1 always
+    private final int interval;
+
+    private volatile long blocks;
+    private volatile long verifiedBlocks;
+
+    /**
+     * @param interval checksum verified one block every interval blocks: 1 for all of them, 0 for none
+     */
+    public ChecksumVerification(int interval) {
+        this.interval = Math.max(0, interval);
+    }
+
+    /**
+     * Returns the verification interval of the given policy: 1 for "always", sampleInterval for "sampled",
+     * 0 for "off".
+     */
+    public static int getInterval(String policy, int sampleInterval) {
+        if (ALWAYS.equalsIgnoreCase(policy)) {
+            return 1;
+        } else if (SAMPLED.equalsIgnoreCase(policy)) {
+            return Math.max(1, sampleInterval);
+        } else if (OFF.equalsIgnoreCase(policy)) {
+            return 0;
+        }
+        throw new IllegalArgumentException("Unknown checksum verification policy: " + policy +
+                " (expected " + ALWAYS + ", " + SAMPLED + " or " + OFF + ")");
+    }
+
+    /**
+     * Takes note of next block read, returning true if its checksum must be verified.
+     */
+    boolean verifyNext() {
+        boolean verify = interval > 0 && blocks % interval == 0;
+        blocks++;
+        if (verify) {
+            verifiedBlocks++;
+        }
+        return verify;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Number of blocks read so far.
+     */
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Number of blocks whose checksum has been verified so far.
+     */
+    public long getVerifiedBlocks() {
+        return verifiedBlocks;
+    }
+}
@@ -33,6 +33,7 @@
 **/
 package com.fing.compression.fourmc;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.compress.CompressionInputStream;
 import org.apache.hadoop.io.compress.CompressionOutputStream;
 import org.apache.hadoop.io.compress.Compressor;
@@ -78,26 +79,61 @@ import java.io.OutputStream;
  * Footer size:        4 bytes (repeated to be able to read from end of file)
  * MAGIC SIGNATURE:    4 bytes: "4MC\0"
  * Footer checksum:    4 bytes (always in XXHASH32)
+ * <p/>
+ * Footer version 2, written when "io.compression.codec.4mc.footer.version" is 2:
+ * Footer size:        4 bytes
+ * Footer version:     4 byte (2)
+ * Block count:        4 bytes
+ * Block size:         4 bytes, uncompressed size of all blocks but the last one
+ * Uncompressed size:  8 bytes, total of the file
+ * Block index offset: 4 bytes delta offset for each stored block, as in version 1
+ * Block size:         4 bytes uncompressed size of each stored block
+ * Footer size:        4 bytes (repeated to be able to read from end of file)
+ * MAGIC SIGNATURE:    4 bytes: "4MC\0"
+ * Footer checksum:    4 bytes (always in XXHASH32)
  */
 public class FourMcCodec extends Lz4Codec {
 
     public static final int FOURMC_MAGIC = 0x344D4300;
     public static final int FOURMC_VERSION = 1;
+    // footer also holding uncompressed block sizes and file totals
+    public static final int FOURMC_FOOTER_VERSION_2 = 2;
     public static final int FOURMC_MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+    public static final int FOURMC_MIN_BLOCK_SIZE = 64 * 1024;
     public static final String FOURMC_DEFAULT_EXTENSION = ".4mc";
     public static final String FOURMC_BLOCK_SIZE_KEY = "io.compression.codec.4mc.blocksize";
+    public static final String FOURMC_COMPRESS_THREADS_KEY = "io.compression.codec.4mc.compress.threads";
+    public static final String FOURMC_WRITE_BEHIND_KEY = "io.compression.codec.4mc.writebehind.blocks";
+    public static final String FOURMC_FOOTER_VERSION_KEY = "io.compression.codec.4mc.footer.version";
+    public static final String FOURMC_READ_AHEAD_KEY = "io.compression.codec.4mc.readahead.blocks";
+    public static final String FOURMC_DECOMPRESS_THREADS_KEY = "io.compression.codec.4mc.decompress.threads";
+    public static final String FOURMC_CHECKSUM_VERIFY_KEY = "io.compression.codec.4mc.checksum.verify";
+    public static final String FOURMC_CHECKSUM_SAMPLE_INTERVAL_KEY = "io.compression.codec.4mc.checksum.sample.interval";
+    public static final String FOURMC_PROBE_KEY = "io.compression.codec.4mc.probe";
+    public static final String FOURMC_PROBE_MIN_GAIN_KEY = "io.compression.codec.4mc.probe.mingain";
+    public static final String FOURMC_BLOCK_CACHE_KEY = "io.compression.codec.4mc.blockcache.bytes";
 
     @Override
     public CompressionOutputStream createOutputStream(OutputStream out) throws IOException {
-        return createOutputStream(out, createCompressor());
+        // compressor belongs to the stream, released on close
+        return createOutputStream(out, createCompressor(), true);
     }
 
     @Override
     public CompressionOutputStream createOutputStream(OutputStream out, Compressor compressor) throws IOException {
+        return createOutputStream(out, compressor, false);
+    }
+
+    private CompressionOutputStream createOutputStream(OutputStream out, Compressor compressor,
+                                                       boolean ownsCompressor) throws IOException {
         if (!isNativeLoaded(getConf())) {
             throw new RuntimeException("native hadoop-4mc library not available");
         }
-        return new FourMcOutputStream(out, compressor, FOURMC_MAX_BLOCK_SIZE);
+        FourMcOutputStream stream = new FourMcOutputStream(out, compressor, getCompressionBlockSize(), getCompressionThreads(), ownsCompressor);
+        stream.setIncompressibilityProbe(createIncompressibilityProbe());
+        stream.setWriteBehind(getWriteBehindBlocks());
+        stream.setFooterVersion(getFooterVersion());
+        return stream;
     }
 
     @Override
@@ -105,12 +141,24 @@ public class FourMcCodec extends Lz4Codec {
         if (!isNativeLoaded(getConf())) {
             throw new RuntimeException("native hadoop-4mc library not available");
         }
-        return new FourMcInputStream(in, decompressor, FOURMC_MAX_BLOCK_SIZE);
+        FourMcInputStream stream = new FourMcInputStream(in, decompressor, getCompressionBlockSize(), false);
+        stream.setReadAhead(getReadAheadBlocks());
+        stream.setDecompressThreads(getDecompressionThreads());
+        stream.setChecksumVerification(new ChecksumVerification(getChecksumVerifyInterval()));
+        return stream;
     }
 
     @Override
     public CompressionInputStream createInputStream(InputStream in) throws IOException {
-        return createInputStream(in, createDecompressor());
+        if (!isNativeLoaded(getConf())) {
+            throw new RuntimeException("native hadoop-4mc library not available");
+        }
+        // decompressor belongs to the stream, released on close
+        FourMcInputStream stream = new FourMcInputStream(in, createDecompressor(), getCompressionBlockSize(), true);
+        stream.setReadAhead(getReadAheadBlocks());
+        stream.setDecompressThreads(getDecompressionThreads());
+        stream.setChecksumVerification(new ChecksumVerification(getChecksumVerifyInterval()));
+        return stream;
     }
 
     @Override
@@ -126,7 +174,7 @@ public class FourMcCodec extends Lz4Codec {
         if (!isNativeLoaded(getConf())) {
             throw new RuntimeException("native hadoop-4mc library not available");
         }
-        return new Lz4Decompressor(FOURMC_MAX_BLOCK_SIZE);
+        return new Lz4Decompressor(getCompressionBlockSize());
     }
 
     @Override
@@ -154,15 +202,110 @@ public class FourMcCodec extends Lz4Codec {
     }
 
     /**
-     * 4MB has been decided to be the hard value here.
-     * Block size cannot overcome 4MB limit (default). Can be configured as "io.compression.codec.4mc.blocksize"
+     * Block size, configured as "io.compression.codec.4mc.blocksize", from 64KB up to 4MB (default).
+     * Smaller blocks mean finer splits and faster random access, at the cost of some compression ratio.
+     * Readers handle any block size, whatever the configured one.
      */
     protected int getCompressionBlockSize() {
-        return FOURMC_MAX_BLOCK_SIZE;
-        /*int bufferSize = getConf().getInt(FOURMC_BLOCK_SIZE_KEY, FOURMC_MAX_BLOCK_SIZE);
-        if (bufferSize<1024*100 || bufferSize>FOURMC_MAX_BLOCK_SIZE) {
+        return getCompressionBlockSize(getConf());
+    }
+
+    /**
+     * Block size of the given configuration, also used by compressors reinitialized by CodecPool.
+     */
+    static int getCompressionBlockSize(Configuration conf) {
+        if (conf == null) {
+            return FOURMC_MAX_BLOCK_SIZE;
+        }
+        int bufferSize = conf.getInt(FOURMC_BLOCK_SIZE_KEY, FOURMC_MAX_BLOCK_SIZE);
+        if (bufferSize < FOURMC_MIN_BLOCK_SIZE || bufferSize > FOURMC_MAX_BLOCK_SIZE) {
             bufferSize = FOURMC_MAX_BLOCK_SIZE;
         }
-        return bufferSize;*/
+        return bufferSize;
+    }
+
+    /**
+     * Number of threads compressing blocks of the same output stream, configured as "io.compression.codec.4mc.compress.threads".
+     * Default is 1, meaning blocks are compressed by the writer thread itself.
+     */
+    protected int getCompressionThreads() {
+        if (getConf() == null) {
+            return 1;
+        }
+        return Math.max(1, getConf().getInt(FOURMC_COMPRESS_THREADS_KEY, 1));
+    }
+
+    /**
+     * Number of compressed blocks that can wait to be written by a background thread, configured as
+     * "io.compression.codec.4mc.writebehind.blocks": compression then overlaps with writes to the underlying stream,
+     * using up to this many more block buffers. Default is 0, meaning blocks are written by the writer thread itself.
+     */
+    protected int getWriteBehindBlocks() {
+        if (getConf() == null) {
+            return 0;
+        }
+        return Math.max(0, getConf().getInt(FOURMC_WRITE_BEHIND_KEY, 0));
+    }
+
+    /**
+     * Version of the footer written at end of file, configured as "io.compression.codec.4mc.footer.version".
+     * Default is 1, readable by any 4mc reader; 2 also stores uncompressed size of each block and file totals,
+     * and needs a reader of this version or later.
+     */
+    protected int getFooterVersion() {
+        if (getConf() == null) {
+            return FOURMC_VERSION;
+        }
+        return getConf().getInt(FOURMC_FOOTER_VERSION_KEY, FOURMC_VERSION) == FOURMC_FOOTER_VERSION_2
+                ? FOURMC_FOOTER_VERSION_2 : FOURMC_VERSION;
+    }
+
+    /**
+     * Number of blocks read and decompressed ahead by a background thread, configured as
+     * "io.compression.codec.4mc.readahead.blocks": decompression then overlaps with reads from the underlying stream,
+     * using up to this many blocks plus one of memory. Default is 0, meaning blocks are read by the reader thread itself.
+     */
+    protected int getReadAheadBlocks() {
+        if (getConf() == null) {
+            return 0;
+        }
+        return Math.max(0, getConf().getInt(FOURMC_READ_AHEAD_KEY, 0));
+    }
+
+    /**
+     * Number of threads decompressing blocks of the same input stream, configured as "io.compression.codec.4mc.decompress.threads".
+     * Blocks are still handed to the reader in order, read-ahead is raised to at least twice this number of blocks.
+     * Default is 1, meaning blocks are decompressed one at a time.
+     */
+    protected int getDecompressionThreads() {
+        if (getConf() == null) {
+            return 1;
+        }
+        return Math.max(1, getConf().getInt(FOURMC_DECOMPRESS_THREADS_KEY, 1));
+    }
+
+    /**
+     * Checksum verification policy of block reads, configured as "io.compression.codec.4mc.checksum.verify":
+     * "always" (default), "sampled" for one block every "io.compression.codec.4mc.checksum.sample.interval"
+     * blocks (default 16), or "off" for data already checked end to end by the file system.
+     * Returns the interval of verified blocks: 1 for all, 0 for none.
+     */
+    protected int getChecksumVerifyInterval() {
+        if (getConf() == null) {
+            return 1;
+        }
+        return ChecksumVerification.getInterval(getConf().get(FOURMC_CHECKSUM_VERIFY_KEY, ChecksumVerification.ALWAYS),
+                getConf().getInt(FOURMC_CHECKSUM_SAMPLE_INTERVAL_KEY, 16));
+    }
+
+    /**
+     * Probe detecting blocks not worth compressing, enabled by "io.compression.codec.4mc.probe" (default false).
+     * Blocks whose estimated gain is below "io.compression.codec.4mc.probe.mingain" (default 0.03) are stored as plain.
+     */
+    protected IncompressibilityProbe createIncompressibilityProbe() {
+        if (getConf() == null || !getConf().getBoolean(FOURMC_PROBE_KEY, false)) {
+            return null;
+        }
+        return new IncompressibilityProbe(getConf().getFloat(FOURMC_PROBE_MIN_GAIN_KEY, IncompressibilityProbe.DEFAULT_MIN_GAIN));
     }
 }
@@ -33,17 +33,24 @@
 **/
 package com.fing.compression.fourmc;
 
+import com.fing.compression.fourmc.util.BlockCache;
+import com.fing.compression.fourmc.util.DirectBufferPool;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.Seekable;
 import org.apache.hadoop.io.compress.BlockDecompressorStream;
 import org.apache.hadoop.io.compress.Decompressor;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -66,25 +73,83 @@ public class FourMcInputStream extends BlockDecompressorStream {
     }
 
     private final byte[] buf = new byte[12];
+    // decompressor created for this stream only, otherwise it comes from CodecPool
+    private final boolean ownsDecompressor;
 
     private int noUncompressedBytes = 0;
     private int noCompressedBytes = 0;
     private int uncompressedBlockSize = 0;
 
+    // number of blocks read and decompressed in background, 0 when disabled
+    private int readAheadBlocks = 0;
+    // number of threads decompressing blocks, more than one implies read-ahead
+    private int decompressThreads = 1;
+    private BlockReadAhead readAhead;
+    // which blocks get their checksum verified, all by default
+    private ChecksumVerification checksumVerification = new ChecksumVerification(1);
+    private BlockReadAhead.Block readAheadBlock;
+    // underlying stream position matching noCompressedBytes == 0, once read-ahead started
+    private long readAheadStartPos;
+    // ByteBuffer reads of underlying stream, null if not supported
+    private ByteBufferReads byteBufferReads;
+    private boolean byteBufferReadsChecked;
+    // compressed data of blocks read with ByteBuffer reads, allocated on first use
+    private ByteBuffer compressedDirectBuf;
+    // block header read, compressed data not yet
+    private boolean atBlockPayload;
+    // shared cache of decompressed blocks, used by serial reads of a Seekable stream whose file is known
+    private BlockCache blockCache;
+    private BlockCache.FileId cacheFileId;
+    // data of current block when it comes from (or just went into) the cache or from a mapped file, null otherwise
+    private ByteBuffer cachedBlock;
+    // cache block backing cachedBlock, given back to the cache once dropped
+    private BlockCache.Block heldBlock;
+    // blocks of a mapped file are decompressed here, allocated on first use
+    private ByteBuffer mappedBlockBuf;
+    // target of data skipped by reading it, allocated on first use
+    private byte[] skipBuf;
+    // whole block decompressed here before being cached, allocated on first use
+    private byte[] cacheBlockData;
+    // decompressors created for worker threads, released on close
+    private final List<Lz4Decompressor> workerDecompressors = new ArrayList<Lz4Decompressor>();
+
     public FourMcInputStream(InputStream in, Decompressor decompressor,
                              int bufferSize) throws IOException {
+        this(in, decompressor, bufferSize, false);
+    }
+
+    /**
+     * Same as above; when ownsDecompressor is true, decompressor direct buffers are released on close,
+     * otherwise decompressor is left intact, ready to be returned to CodecPool.
+     */
+    FourMcInputStream(InputStream in, Decompressor decompressor,
+                      int bufferSize, boolean ownsDecompressor) throws IOException {
         super(in, decompressor, bufferSize);
+        this.ownsDecompressor = ownsDecompressor;
         try {
+            // buffer starts at configured block size, and grows only for a file written with bigger blocks
             readHeader(in);
         } catch (IOException e) {
-            // force release direct buffers of decompressor
-            ((Lz4Decompressor)this.decompressor).releaseDirectBuffers();
+            if (ownsDecompressor) {
+                // force release direct buffers of decompressor
+                ((Lz4Decompressor)this.decompressor).releaseDirectBuffers();
+            }
             this.decompressor=null;
             throw e;
         }
     }
 
 
+    /**
+     * Grows the compressed data buffer to hold the given length, once the block being read needs it:
+     * size doubles up to max block size, so that blocks of growing sizes reallocate it only a few times.
+     */
+    private void ensureBufferCapacity(int len) {
+        if (buffer.length < len) {
+            buffer = new byte[Math.max(len, (int) Math.min(2L * buffer.length, FourMcCodec.FOURMC_MAX_BLOCK_SIZE))];
+        }
+    }
+
     /**
      * Reads len bytes in a loop.
      * <p/>
@@ -161,38 +226,94 @@ public class FourMcInputStream extends BlockDecompressorStream {
      * @throws IOException
      */
     public static FourMcBlockIndex readIndex(FileSystem fs, Path file) throws IOException {
+        return readIndex(fs, fs.getFileStatus(file));
+    }
 
-        long fileSize = fs.getFileStatus(file).getLen();
+    /**
+     * Reads blocks index at tail of file, whose status is already known: the file is just opened and its footer
+     * fetched, with a single positioned read in most cases.
+     *
+     * @param fs     filesystem
+     * @param status status of 4mc file
+     * @return block index
+     * @throws IOException
+     */
+    public static FourMcBlockIndex readIndex(FileSystem fs, FileStatus status) throws IOException {
+
+        long fileSize = status.getLen();
         if (fileSize < (12 + 20)) { // file too small
             return new FourMcBlockIndex();
         }
 
-        FSDataInputStream indexIn = fs.open(file);
+        FSDataInputStream indexIn = fs.open(status.getPath());
+        try {
+            return readIndex(indexIn, fileSize);
+        } finally {
+            indexIn.close();
+        }
+    }
+
+    /**
+     * Opens a stream over the blocks of a 4mc file starting in [start, end), as a split reads them, fetched with
+     * few large ranged reads run in parallel by the given number of threads: suited to object stores, where
+     * each read is a request. Footer index is read through the same open stream.
+     * Decompressor and stream settings come from the given codec, as with codec.createInputStream().
+     */
+    public static FourMcInputStream openSplit(FourMcCodec codec, FileSystem fs, Path file, long start, long end,
+                                              int threads) throws IOException {
+        return openSplit(codec, fs, fs.getFileStatus(file), start, end, threads);
+    }
+
+    /**
+     * Same as above, for a file whose status is already known.
+     */
+    public static FourMcInputStream openSplit(FourMcCodec codec, FileSystem fs, FileStatus status, long start,
+                                              long end, int threads) throws IOException {
+        long fileSize = status.getLen();
+        FSDataInputStream in = fs.open(status.getPath());
+        InputStream ranges;
+        try {
+            ranges = new BlockRangeInputStream(in, readIndex(in, fileSize).getPositions(), fileSize, start, end, threads);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        try {
+            // decompressor belongs to the stream, released on close
+            return (FourMcInputStream) codec.createInputStream(ranges);
+        } catch (IOException e) {
+            ranges.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads blocks index at tail of file through the given stream with positioned reads, stream left open.
+     */
+    static FourMcBlockIndex readIndex(FSDataInputStream indexIn, long fileSize) throws IOException {
+        if (fileSize < (12 + 20)) { // file too small
+            return new FourMcBlockIndex();
+        }
 
         /*
             4mc Footer:
              Footer size:        4 bytes
-             Footer version:     4 byte (1)
+             Footer version:     4 byte (1 or 2)
+             Block count:        4 bytes (version 2 only)
+             Block size:         4 bytes (version 2 only)
+             Uncompressed size:  8 bytes, total of the file (version 2 only)
              Block index offset: 4 bytes delta offset for each stored block, the delta between offset between previous file position and next block
+             Block size:         4 bytes uncompressed size of each stored block (version 2 only)
              Footer size:        4 bytes (repeated to be able to read from end of file)
              MAGIC SIGNATURE:    4 bytes: "4MC\0"
              Footer checksum:    4 bytes (always in XXHASH32)
 
         */
 
-        /**
-         * jump to file tail and read-ahead last 4KB of file which should be enough in most cases
-         * Improvement: we could estimate a best case compression factor of 10% and calc forecast
-         *              based on filesize and blocksize, to see if better to read-head more.
-         */
-
-        int readTailSize = 4 * 1024;
-        if (readTailSize>(fileSize-12))
-            readTailSize = (int)(fileSize-12);
-
-        indexIn.seek(fileSize - readTailSize);
+        // footer fetched along with the tail of the file, in a single read most of the times
+        int readTailSize = estimateTailSize(fileSize);
         byte[] buf = new byte[readTailSize];
-        readFully(indexIn, buf, 0, buf.length);
+        indexIn.readFully(fileSize - readTailSize, buf, 0, buf.length);
         int footerSize =  getInt(buf, buf.length-12);
         int magic = getInt(buf, buf.length-8);
         int checksum = getInt(buf, buf.length - 4);
@@ -204,29 +325,31 @@ public class FourMcInputStream extends BlockDecompressorStream {
             throw new IOException("Invalid 4mc footer checksum");
         }
 
-        // very rare case: read head was not enough! seek back and read it all
+        // rare case: file holds even smaller blocks than expected, read the whole footer
         if (footerSize>readTailSize) {
             readTailSize = footerSize;
-            indexIn.seek(fileSize - readTailSize);
             buf = new byte[readTailSize];
-            readFully(indexIn, buf, 0, buf.length);
+            indexIn.readFully(fileSize - readTailSize, buf, 0, buf.length);
         }
-        indexIn.close();
-
         int startFooterOffset = readTailSize - footerSize;
 
         if (getInt(buf, startFooterOffset) != footerSize) { // size again
             throw new IOException("Invalid 4mc footer size");
         }
 
-        if (getInt(buf, startFooterOffset+4) != FourMcCodec.FOURMC_VERSION) { // version
-            throw new IOException("Invalid 4mc footer version (" + getInt(buf, startFooterOffset+4) + ")");
+        int version = getInt(buf, startFooterOffset+4);
+        if (version != FourMcCodec.FOURMC_VERSION && version != FourMcCodec.FOURMC_FOOTER_VERSION_2) {
+            throw new IOException("Invalid 4mc footer version (" + version + ")");
         }
 
         if (checksum != Lz4Decompressor.xxhash32(buf, startFooterOffset, footerSize - 4, 0)) {
             throw new IOException("Invalid 4mc footer checksum");
         }
 
+        if (version == FourMcCodec.FOURMC_FOOTER_VERSION_2) {
+            return readIndexV2(buf, startFooterOffset, footerSize);
+        }
+
         int totalBlocks = (footerSize - 20) / 4;
         FourMcBlockIndex index = new FourMcBlockIndex(totalBlocks);
         long curOffset = 0;
@@ -238,52 +361,702 @@ public class FourMcInputStream extends BlockDecompressorStream {
         return index;
     }
 
+    /**
+     * Parses a version 2 footer, already checked for magic and checksum: block deltas are followed
+     * by uncompressed block sizes, whose total must match the one stored ahead of them.
+     */
+    private static FourMcBlockIndex readIndexV2(byte[] buf, int startFooterOffset, int footerSize) throws IOException {
+        int totalBlocks = getInt(buf, startFooterOffset + 8);
+        if (totalBlocks < 0 || footerSize != 36 + 8L * totalBlocks) {
+            throw new IOException("Invalid 4mc footer size");
+        }
+        int blockSize = getInt(buf, startFooterOffset + 12);
+        long totalBytes = ((long) getInt(buf, startFooterOffset + 16) << 32)
+                | (getInt(buf, startFooterOffset + 20) & 0xFFFFFFFFL);
+
+        FourMcBlockIndex index = new FourMcBlockIndex(totalBlocks);
+        int[] sizes = new int[totalBlocks];
+        int offsetsStart = startFooterOffset + 24;
+        int sizesStart = offsetsStart + totalBlocks * 4;
+        long curOffset = 0;
+        long curBytes = 0;
+        for (int i = 0; i < totalBlocks; ++i) {
+            curOffset += getInt(buf, offsetsStart + (i * 4));
+            index.set(i, curOffset);
+            sizes[i] = getInt(buf, sizesStart + (i * 4));
+            if (sizes[i] < 0) {
+                throw new IOException("Invalid 4mc footer block size");
+            }
+            curBytes += sizes[i];
+        }
+        if (curBytes != totalBytes) {
+            throw new IOException("Invalid 4mc footer uncompressed size");
+        }
+        index.setUncompressedSizes(sizes, blockSize);
+
+        return index;
+    }
+
+    /**
+     * Size of file tail read to get the footer at once: room for the version 2 index of as many blocks as the file
+     * holds when they are compressed to 10% of max block size, a best case for usual data. Reading a few more KB costs
+     * far less than a second request on a high latency file system.
+     */
+    static int estimateTailSize(long fileSize) {
+        long blocks = fileSize / (FourMcCodec.FOURMC_MAX_BLOCK_SIZE / 10) + 1;
+        long tailSize = Math.max(4 * 1024, 36 + 8 * blocks);
+        return (int) Math.min(tailSize, fileSize - 12);
+    }
+
+
+    /**
+     * Enables background read-ahead: next blocks are read and decompressed by a helper thread while
+     * the current one is consumed, using up to blocks + 1 block buffers. Must be set before reading;
+     * as the underlying stream is read ahead, position of consumed data is given by getPos().
+     *
+     * @param blocks number of blocks read ahead, 0 to disable
+     */
+    public void setReadAhead(int blocks) {
+        if (readAhead != null) {
+            throw new IllegalStateException("Read-ahead already started");
+        }
+        this.readAheadBlocks = Math.max(0, blocks);
+    }
+
+    /**
+     * Sets which blocks get their checksum verified, see ChecksumVerification; by default all of them.
+     * Must be set before reading. Block counters are the ones of the given object.
+     */
+    public void setChecksumVerification(ChecksumVerification checksumVerification) {
+        if (readAhead != null) {
+            throw new IllegalStateException("Read-ahead already started");
+        }
+        this.checksumVerification = checksumVerification;
+    }
+
+    /**
+     * Makes reads consult the given block cache, the stream reading the given file: hot blocks are then
+     * served with no I/O nor decompression. Used only when underlying stream is Seekable and blocks are
+     * not read ahead; a disabled cache (capacity 0) is just skipped.
+     */
+    public void setBlockCache(BlockCache blockCache, BlockCache.FileId fileId) {
+        this.blockCache = blockCache;
+        this.cacheFileId = fileId;
+    }
+
+    private boolean useBlockCache() {
+        return blockCache != null && blockCache.isEnabled() && in instanceof Seekable;
+    }
+
+    /**
+     * Checksum verification policy in use, along with the count of blocks read and verified.
+     */
+    public ChecksumVerification getChecksumVerification() {
+        return checksumVerification;
+    }
+
+    /**
+     * Decompresses blocks concurrently on the given number of threads, each one with its own decompressor.
+     * Implies read-ahead of at least twice as many blocks, so that all threads are kept busy; blocks are
+     * still consumed in file order. Must be set before reading.
+     *
+     * @param threads number of decompressing threads, 1 to decompress blocks one at a time
+     */
+    public void setDecompressThreads(int threads) {
+        if (readAhead != null) {
+            throw new IllegalStateException("Read-ahead already started");
+        }
+        this.decompressThreads = Math.max(1, threads);
+    }
+
+    private boolean isReadAhead() {
+        return readAheadBlocks > 0 || decompressThreads > 1;
+    }
+
+    /**
+     * Moves underlying stream, which must be Seekable, to the block starting at the given offset:
+     * next read returns first byte of that block. Not available with read-ahead.
+     */
+    void seekToBlock(long offset) throws IOException {
+        if (isReadAhead()) {
+            throw new IllegalStateException("Block seek not available with read-ahead");
+        }
+        checkStream();
+        ((Seekable) in).seek(offset);
+        decompressor.reset();
+        noUncompressedBytes = uncompressedBlockSize = 0;
+        noCompressedBytes = 0;
+        atBlockPayload = false;
+        dropCachedBlock();
+        eof = false;
+    }
+
+    /**
+     * Position in the underlying stream of data consumed so far. With read-ahead the underlying stream is further on,
+     * this is where it would be without read-ahead: split readers can go on checking their boundaries with it.
+     */
+    @Override
+    public long getPos() throws IOException {
+        if (readAhead == null) {
+            return super.getPos();
+        }
+        return readAheadStartPos + noCompressedBytes;
+    }
+
+    /**
+     * Returns the read-ahead block with data to be consumed, starting read-ahead on first call, or null at end of stream.
+     */
+    private BlockReadAhead.Block nextReadAheadBlock() throws IOException {
+        if (readAheadBlock != null && readAheadBlock.remaining() > 0) {
+            return readAheadBlock;
+        }
+        if (readAhead == null) {
+            List<BlockReadAhead.BlockDecoder> decoders = new ArrayList<BlockReadAhead.BlockDecoder>();
+            decoders.add(newBlockDecoder((Lz4Decompressor) decompressor));
+            for (int i = 1; i < decompressThreads; ++i) {
+                Lz4Decompressor dec = new Lz4Decompressor(buffer.length);
+                workerDecompressors.add(dec);
+                decoders.add(newBlockDecoder(dec));
+            }
+            readAheadStartPos = super.getPos() - noCompressedBytes;
+            readAhead = new BlockReadAhead(in, decoders, Math.max(readAheadBlocks, 2 * decompressThreads), FourMcCodec.FOURMC_MAX_BLOCK_SIZE,
+                    checksumVerification);
+        }
+        readAheadBlock = readAhead.take(readAheadBlock);
+        if (readAheadBlock == null) {
+            eof = true;
+            return null;
+        }
+        noCompressedBytes += readAheadBlock.frameLength;
+        return readAheadBlock;
+    }
+
+    private static BlockReadAhead.BlockDecoder newBlockDecoder(final Lz4Decompressor dec) {
+        return new BlockReadAhead.BlockDecoder() {
+            public void decode(byte[] src, int compressedLen, int checksum, boolean verify, byte[] dst,
+                               int uncompressedLen) throws IOException {
+                decodeBlock(dec, src, compressedLen, checksum, verify, dst, uncompressedLen);
+            }
+        };
+    }
+
+    /**
+     * Decompresses a whole block with the given decompressor, used by one read-ahead thread at a time.
+     * When verify is true, checksum of compressed data is verified by native code in the same call.
+     */
+    private static void decodeBlock(Lz4Decompressor lz4dec, byte[] src, int compressedLen, int checksum,
+                                    boolean verify, byte[] dst, int uncompressedLen) throws IOException {
+        lz4dec.reset();
+        lz4dec.ensureBlockCapacity(uncompressedLen);
+        lz4dec.setCurrentBlockUncompressed(false);
+        if (verify) {
+            lz4dec.setBlockChecksum(checksum);
+        }
+        lz4dec.setInput(src, 0, compressedLen);
+        int n = 0, ret;
+        while (n < uncompressedLen && (ret = lz4dec.decompress(dst, n, uncompressedLen - n)) > 0) {
+            n += ret;
+        }
+        if (n != uncompressedLen) {
+            throw new IOException("Corrupted compressed block (uncompressed length " + n +
+                    " instead of " + uncompressedLen + ")");
+        }
+    }
 
     @Override
     protected int decompress(byte[] b, int off, int len) throws IOException {
+        if (isReadAhead()) {
+            BlockReadAhead.Block block = nextReadAheadBlock();
+            return block == null ? -1 : block.read(b, off, len);
+        }
+
         // Check if we are the beginning of a block
-        if (noUncompressedBytes == uncompressedBlockSize) {
+        if (noUncompressedBytes == uncompressedBlockSize && !readBlockHeader()) {
+            return -1;
+        }
+        if (atBlockPayload && in instanceof MappedFileInputStream && !readMappedBlock()) {
+            return -1;
+        }
+        if (cachedBlock != null) {
+            return readCached(b, off, len);
+        }
 
-            // Get original data size
-            try {
-                byte[] tempBuf = new byte[4];
-                uncompressedBlockSize = readInt(in, tempBuf, 4);
-                noCompressedBytes += 4;
-            } catch (EOFException e) {
+        int n = 0;
+        while ((n = decompressor.decompress(b, off, len)) == 0) {
+            if (!feedDecompressor()) {
                 return -1;
             }
-            noUncompressedBytes = 0;
         }
 
+        // Note the no. of decompressed bytes read from 'current' block
+        noUncompressedBytes += n;
+
+        return n;
+    }
+
+    /**
+     * Reads up to dst.remaining() bytes into the given buffer, returning -1 at end of stream.
+     * A direct buffer with room for a whole block gets it decompressed straight into its memory.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        checkStream();
+        if (eof) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        if (isReadAhead()) {
+            BlockReadAhead.Block block = nextReadAheadBlock();
+            return block == null ? -1 : block.read(dst);
+        }
+
+        if (noUncompressedBytes == uncompressedBlockSize && !readBlockHeader()) {
+            return -1;
+        }
+        if (cachedBlock != null) {
+            return readCached(dst);
+        }
+
+        if (atBlockPayload && dst.isDirect() && dst.remaining() >= uncompressedBlockSize &&
+                (in instanceof MappedFileInputStream || supportsByteBufferReads())) {
+            return readBlockDirect(dst);
+        }
+        if (atBlockPayload && in instanceof MappedFileInputStream) {
+            if (!readMappedBlock()) {
+                return -1;
+            }
+            return readCached(dst);
+        }
+
+        Lz4Decompressor dec = (Lz4Decompressor) decompressor;
         int n = 0;
-        while ((n = decompressor.decompress(b, off, len)) == 0) {
+        while ((n = dec.decompress(dst, uncompressedBlockSize - noUncompressedBytes)) == 0) {
+            if (!feedDecompressor()) {
+                return -1;
+            }
+        }
+
+        noUncompressedBytes += n;
+
+        return n;
+    }
+
+    /**
+     * Skips up to n bytes of uncompressed data, with no decompression of blocks skipped as a whole: their header gives
+     * their uncompressed size and their payload is skipped on underlying stream, by seeking it when Seekable.
+     * Only a block skipped in part is decompressed. With read-ahead skipped data is read as usual.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        checkStream();
+        if (n <= 0 || eof) {
+            return 0;
+        }
+        if (isReadAhead()) {
+            return skipRead(n);
+        }
 
-            if (decompressor.finished() || decompressor.needsDictionary()) {
-                if (noUncompressedBytes >= uncompressedBlockSize) {
-                    eof = true;
-                    return -1;
+        long skipped = 0;
+        while (skipped < n) {
+            if (noUncompressedBytes == uncompressedBlockSize && !readBlockHeader()) {
+                break;
+            }
+            long left = n - skipped;
+            if (cachedBlock != null) {
+                int len = (int) Math.min(left, cachedBlock.remaining());
+                cachedBlock.position(cachedBlock.position() + len);
+                skipped += consumedCached(len);
+            } else if (atBlockPayload && left >= uncompressedBlockSize) {
+                if (!skipBlockPayload()) {
+                    break;
+                }
+                skipped += uncompressedBlockSize;
+            } else {
+                // block skipped in part, or rest of the block being decompressed
+                long ret = skipRead(Math.min(left, uncompressedBlockSize - noUncompressedBytes));
+                if (ret <= 0) {
+                    break;
                 }
+                skipped += ret;
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Skips n bytes by reading them, returning the number of bytes skipped, less than n at end of stream.
+     */
+    private long skipRead(long n) throws IOException {
+        if (skipBuf == null) {
+            skipBuf = new byte[64 * 1024];
+        }
+        long skipped = 0;
+        while (skipped < n) {
+            int ret = read(skipBuf, 0, (int) Math.min(n - skipped, skipBuf.length));
+            if (ret < 0) {
+                break;
+            }
+            skipped += ret;
+        }
+        return skipped;
+    }
+
+    /**
+     * Moves past the payload of current block, whose header has just been read, without reading it.
+     */
+    private boolean skipBlockPayload() throws IOException {
+        int compressedLen = readInt(in, buf, 4);
+        readInt(in, buf, 4); // checksum
+        noCompressedBytes += 8;
+        atBlockPayload = false;
+
+        if (compressedLen > FourMcCodec.FOURMC_MAX_BLOCK_SIZE) {
+            throw new IOException("Compressed length " + compressedLen +
+                    " exceeds max block size " + FourMcCodec.FOURMC_MAX_BLOCK_SIZE);
+        }
+
+        try {
+            if (in instanceof Seekable) {
+                Seekable seekable = (Seekable) in;
+                seekable.seek(seekable.getPos() + compressedLen);
+            } else {
+                skipFully(in, compressedLen);
             }
+        } catch (EOFException e) {
+            eof = true;
+            return false;
+        }
+        noCompressedBytes += compressedLen;
+        noUncompressedBytes = uncompressedBlockSize;
+        return true;
+    }
 
-            if (decompressor.needsInput()) {
-                try {
-                    getCompressedData();
-                } catch (EOFException e) {
-                    eof = true;
-                    return -1;
-                } catch (IOException e) {
-                    LOG.warn("IOException in getCompressedData; likely 4mc corruption.", e);
-                    throw e;
+    private static void skipFully(InputStream in, long len) throws IOException {
+        while (len > 0) {
+            long ret = in.skip(len);
+            if (ret <= 0) {
+                // skip() may not tell end of stream apart, read() does
+                if (in.read() < 0) {
+                    throw new EOFException("Premature EOF from inputStream");
                 }
+                ret = 1;
             }
+            len -= ret;
         }
+    }
 
-        // Note the no. of decompressed bytes read from 'current' block
-        noUncompressedBytes += n;
+    private boolean supportsByteBufferReads() {
+        if (!byteBufferReadsChecked) {
+            byteBufferReads = ByteBufferReads.of(in);
+            byteBufferReadsChecked = true;
+        }
+        return byteBufferReads != null;
+    }
+
+    /**
+     * Reads the whole current block into a direct buffer having room for it, with ByteBuffer reads of underlying stream:
+     * a stored block lands in dst as it is, a compressed one is read into a direct buffer and decompressed into dst.
+     * No data goes through heap. Blocks of a mapped file are taken in place from mapped memory.
+     */
+    private int readBlockDirect(ByteBuffer dst) throws IOException {
+        int compressedLen = readInt(in, buf, 4);
+        int checksum = readInt(in, buf, 4);
+        noCompressedBytes += 8;
+        atBlockPayload = false;
+
+        if (compressedLen > FourMcCodec.FOURMC_MAX_BLOCK_SIZE) {
+            throw new IOException("Compressed length " + compressedLen +
+                    " exceeds max block size " + FourMcCodec.FOURMC_MAX_BLOCK_SIZE);
+        }
+
+        boolean uncompressed = compressedLen >= uncompressedBlockSize;
+        if (uncompressed && compressedLen > dst.remaining()) {
+            throw new IOException("Corrupted uncompressed block (invalid length)");
+        }
+        boolean mapped = in instanceof MappedFileInputStream;
+        ByteBuffer src;
+        if (mapped) {
+            try {
+                src = ((MappedFileInputStream) in).slice(compressedLen);
+            } catch (EOFException e) {
+                eof = true;
+                return -1;
+            }
+        } else {
+            if (uncompressed) {
+                src = dst.slice();
+            } else {
+                if (compressedDirectBuf == null || compressedDirectBuf.capacity() < compressedLen) {
+                    releaseCompressedDirectBuf();
+                    compressedDirectBuf = DirectBufferPool.getInstance().allocate(Math.max(compressedLen, buffer.length));
+                }
+                src = compressedDirectBuf;
+                src.clear();
+            }
+            src.limit(compressedLen);
+
+            try {
+                if (!byteBufferReads.readFully(src)) {
+                    // stream has no ByteBuffer reads after all
+                    byteBufferReads = null;
+                    ensureBufferCapacity(compressedLen);
+                    readFully(in, buffer, 0, compressedLen);
+                    src.put(buffer, 0, compressedLen);
+                }
+            } catch (EOFException e) {
+                eof = true;
+                return -1;
+            }
+            src.flip();
+        }
+        noCompressedBytes += compressedLen;
+
+        boolean verify = checksumVerification.verifyNext();
+        int n;
+        if (uncompressed) {
+            if (verify && checksum != Lz4Decompressor.xxhash32Direct(src, 0, compressedLen, 0)) {
+                throw new IOException("Corrupted uncompressed block (invalid checksum)");
+            }
+            n = compressedLen;
+            if (mapped) {
+                dst.put(src);
+            } else {
+                dst.position(dst.position() + n);
+            }
+        } else {
+            int start = dst.position();
+            Lz4Decompressor dec = (Lz4Decompressor) decompressor;
+            if (verify) {
+                // verified by native code on src, in the decompression call
+                dec.setBlockChecksum(checksum);
+            }
+            dec.decompress(src, dst);
+            n = dst.position() - start;
+            if (n != uncompressedBlockSize) {
+                throw new IOException("Corrupted compressed block (uncompressed length " + n +
+                        " instead of " + uncompressedBlockSize + ")");
+            }
+        }
+        noUncompressedBytes = uncompressedBlockSize;
+        return n;
+    }
+
+    /**
+     * Reads current block of a mapped file, then served as cached block: a stored block is served in place
+     * from mapped memory, a compressed one is decompressed from mapped memory into a direct buffer.
+     */
+    private boolean readMappedBlock() throws IOException {
+        int compressedLen = readInt(in, buf, 4);
+        int checksum = readInt(in, buf, 4);
+        noCompressedBytes += 8;
+        atBlockPayload = false;
+
+        if (compressedLen > FourMcCodec.FOURMC_MAX_BLOCK_SIZE) {
+            throw new IOException("Compressed length " + compressedLen +
+                    " exceeds max block size " + FourMcCodec.FOURMC_MAX_BLOCK_SIZE);
+        }
+        boolean uncompressed = compressedLen >= uncompressedBlockSize;
+        if (uncompressed && compressedLen != uncompressedBlockSize) {
+            throw new IOException("Corrupted uncompressed block (invalid length)");
+        }
+
+        ByteBuffer src;
+        try {
+            src = ((MappedFileInputStream) in).slice(compressedLen);
+        } catch (EOFException e) {
+            eof = true;
+            return false;
+        }
+        noCompressedBytes += compressedLen;
+
+        boolean verify = checksumVerification.verifyNext();
+        if (uncompressed) {
+            if (verify && checksum != Lz4Decompressor.xxhash32Direct(src, 0, compressedLen, 0)) {
+                throw new IOException("Corrupted uncompressed block (invalid checksum)");
+            }
+            cachedBlock = src;
+        } else {
+            if (mappedBlockBuf == null || mappedBlockBuf.capacity() < uncompressedBlockSize) {
+                releaseMappedBlockBuf();
+                mappedBlockBuf = DirectBufferPool.getInstance().allocate(Math.max(uncompressedBlockSize, buffer.length));
+            }
+            mappedBlockBuf.clear();
+            Lz4Decompressor dec = (Lz4Decompressor) decompressor;
+            if (verify) {
+                // verified by native code on src, in the decompression call
+                dec.setBlockChecksum(checksum);
+            }
+            dec.decompress(src, mappedBlockBuf);
+            mappedBlockBuf.flip();
+            if (mappedBlockBuf.remaining() != uncompressedBlockSize) {
+                throw new IOException("Corrupted compressed block (uncompressed length " + mappedBlockBuf.remaining() +
+                        " instead of " + uncompressedBlockSize + ")");
+            }
+            cachedBlock = mappedBlockBuf;
+        }
+        return true;
+    }
+
+    private void releaseMappedBlockBuf() {
+        if (mappedBlockBuf != null) {
+            DirectBufferPool.getInstance().release(mappedBlockBuf);
+            mappedBlockBuf = null;
+        }
+    }
+
+    private void releaseCompressedDirectBuf() {
+        if (compressedDirectBuf != null) {
+            DirectBufferPool.getInstance().release(compressedDirectBuf);
+            compressedDirectBuf = null;
+        }
+    }
+
+    /**
+     * Reads uncompressed size of next block, returning false at end of stream.
+     */
+    private boolean readBlockHeader() throws IOException {
+        boolean cached = useBlockCache();
+        long blockOffset = cached ? ((Seekable) in).getPos() : -1;
+
+        // Get original data size
+        try {
+            uncompressedBlockSize = readInt(in, buf, 4);
+            noCompressedBytes += 4;
+        } catch (EOFException e) {
+            return false;
+        }
+        noUncompressedBytes = 0;
+
+        if (uncompressedBlockSize == 0) {
+            // end mark
+            eof = true;
+            return false;
+        }
+        if (uncompressedBlockSize > FourMcCodec.FOURMC_MAX_BLOCK_SIZE) {
+            throw new IOException("Uncompressed length " + uncompressedBlockSize +
+                    " exceeds max block size " + FourMcCodec.FOURMC_MAX_BLOCK_SIZE);
+        }
+
+        if (cached) {
+            readCachedBlock(blockOffset);
+            return true;
+        }
+
+        // file could have been written with bigger blocks than the ones of current configuration
+        ((Lz4Decompressor) decompressor).ensureBlockCapacity(uncompressedBlockSize);
+        atBlockPayload = true;
+        return true;
+    }
+
+    /**
+     * Makes the block whose header is being read the cached block: taken from the cache, skipping
+     * its payload, or read and decompressed as a whole and put in the cache.
+     */
+    private void readCachedBlock(long blockOffset) throws IOException {
+        BlockCache.Block block = blockCache.get(cacheFileId, blockOffset);
+        if (block != null) {
+            heldBlock = block;
+            cachedBlock = block.getData();
+            ((Seekable) in).seek(blockOffset + block.getFrameLength());
+            noCompressedBytes += block.getFrameLength() - 4;
+            return;
+        }
+
+        int compressedLen = readInt(in, buf, 4);
+        int checksum = readInt(in, buf, 4);
+        noCompressedBytes += 8;
+        if (compressedLen > FourMcCodec.FOURMC_MAX_BLOCK_SIZE) {
+            throw new IOException("Compressed length " + compressedLen +
+                    " exceeds max block size " + FourMcCodec.FOURMC_MAX_BLOCK_SIZE);
+        }
+        ensureBufferCapacity(compressedLen);
+        readFully(in, buffer, 0, compressedLen);
+        noCompressedBytes += compressedLen;
 
+        boolean verify = checksumVerification.verifyNext();
+        byte[] data;
+        if (compressedLen >= uncompressedBlockSize) {
+            if (verify && checksum != Lz4Decompressor.xxhash32(buffer, 0, compressedLen, 0)) {
+                throw new IOException("Corrupted uncompressed block (invalid checksum)");
+            }
+            data = buffer;
+        } else {
+            if (cacheBlockData == null || cacheBlockData.length < uncompressedBlockSize) {
+                cacheBlockData = new byte[Math.max(uncompressedBlockSize, buffer.length)];
+            }
+            data = cacheBlockData;
+            decodeBlock((Lz4Decompressor) decompressor, buffer, compressedLen, checksum, verify, data, uncompressedBlockSize);
+        }
+
+        block = blockCache.put(cacheFileId, blockOffset, data, 0, uncompressedBlockSize, 12 + compressedLen);
+        heldBlock = block;
+        cachedBlock = block != null ? block.getData() : ByteBuffer.wrap(data, 0, uncompressedBlockSize);
+    }
+
+    /**
+     * Serves current cached block, which is dropped once consumed.
+     */
+    private int readCached(byte[] b, int off, int len) {
+        int n = Math.min(len, cachedBlock.remaining());
+        cachedBlock.get(b, off, n);
+        return consumedCached(n);
+    }
+
+    private int readCached(ByteBuffer dst) {
+        int n = Math.min(dst.remaining(), cachedBlock.remaining());
+        int limit = cachedBlock.limit();
+        cachedBlock.limit(cachedBlock.position() + n);
+        dst.put(cachedBlock);
+        cachedBlock.limit(limit);
+        return consumedCached(n);
+    }
+
+    private int consumedCached(int n) {
+        noUncompressedBytes += n;
+        if (!cachedBlock.hasRemaining()) {
+            dropCachedBlock();
+        }
         return n;
     }
 
+    /**
+     * Drops current cached block, giving it back to the block cache when it comes from there.
+     */
+    private void dropCachedBlock() {
+        cachedBlock = null;
+        if (heldBlock != null) {
+            blockCache.release(heldBlock);
+            heldBlock = null;
+        }
+    }
+
+    /**
+     * Feeds decompressor with next compressed block when it needs input, returning false at end of stream.
+     */
+    private boolean feedDecompressor() throws IOException {
+        if (decompressor.finished() || decompressor.needsDictionary()) {
+            if (noUncompressedBytes >= uncompressedBlockSize) {
+                eof = true;
+                return false;
+            }
+        }
+
+        if (decompressor.needsInput()) {
+            try {
+                getCompressedData();
+            } catch (EOFException e) {
+                eof = true;
+                return false;
+            } catch (IOException e) {
+                LOG.warn("IOException in getCompressedData; likely 4mc corruption.", e);
+                throw e;
+            }
+        }
+        return true;
+    }
+
     /**
      * Read checksums and feed compressed block data into decompressor.
      */
@@ -294,6 +1067,7 @@ public class FourMcInputStream extends BlockDecompressorStream {
         // Get the size of the compressed chunk
         int compressedLen = readInt(in, buf, 4);
         noCompressedBytes += 4;
+        atBlockPayload = false;
 
         // Get the checksum of the compressed chunk
         int checksum = readInt(in, buf, 4);
@@ -310,18 +1084,18 @@ public class FourMcInputStream extends BlockDecompressorStream {
         lz4dec.setCurrentBlockUncompressed(compressedLen >= uncompressedBlockSize);
 
         // Read len bytes from underlying stream
-        if (compressedLen > buffer.length) {
-            buffer = new byte[compressedLen];
-        }
+        ensureBufferCapacity(compressedLen);
         readFully(in, buffer, 0, compressedLen);
         noCompressedBytes += compressedLen;
 
-        // checksum check
-        if (checksum != Lz4Decompressor.xxhash32(buffer, 0, compressedLen, 0)) {
+        // checksum check, as policy says: a compressed block is verified by native code in the decompression call
+        if (checksumVerification.verifyNext()) {
             if (lz4dec.isCurrentBlockUncompressed()) {
-                throw new IOException("Corrupted uncompressed block (invalid checksum)");
+                if (checksum != Lz4Decompressor.xxhash32(buffer, 0, compressedLen, 0)) {
+                    throw new IOException("Corrupted uncompressed block (invalid checksum)");
+                }
             } else {
-                throw new IOException("Corrupted compressed block (invalid checksum)");
+                lz4dec.setBlockChecksum(checksum);
             }
         }
 
@@ -340,14 +1114,44 @@ public class FourMcInputStream extends BlockDecompressorStream {
         if ( decompressor == null ) {
             return;
         }
-        byte[] b = new byte[4096];
-        while (!decompressor.finished()) {
-          decompressor.decompress(b, 0, b.length);
+        boolean decompressorsIdle = true;
+        if (readAhead != null) {
+            // read-ahead thread owns decompressor and underlying stream: stop it before releasing them
+            readAhead.close();
+            try {
+                super.close();
+            } finally {
+                decompressorsIdle = readAhead.awaitTermination();
+                readAhead = null;
+                readAheadBlock = null;
+                if (decompressorsIdle) {
+                    for (Lz4Decompressor dec : workerDecompressors) {
+                        dec.releaseDirectBuffers();
+                    }
+                } else {
+                    LOG.warn("Block read-ahead threads still running on close, decompressors are not released");
+                }
+                workerDecompressors.clear();
+            }
+        } else {
+            // rest of current block is not decompressed: decompressor is just reset or released below
+            super.close();
         }
-        super.close();
 
-        // force release direct buffers of decompressor
-        ((Lz4Decompressor)decompressor).releaseDirectBuffers();
+        releaseCompressedDirectBuf();
+        dropCachedBlock();
+        cacheBlockData = null;
+        releaseMappedBlockBuf();
+
+        if (!decompressorsIdle) {
+            // still used by read-ahead: left as it is
+        } else if (ownsDecompressor) {
+            // force release direct buffers of decompressor
+            ((Lz4Decompressor)decompressor).releaseDirectBuffers();
+        } else {
+            // pooled decompressor: left intact, ready for next stream
+            decompressor.reset();
+        }
         decompressor=null;
     }
 }
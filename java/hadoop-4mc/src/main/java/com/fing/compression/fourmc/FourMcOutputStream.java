@@ -39,21 +39,44 @@ import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.compress.Compressor;
 import org.apache.hadoop.io.compress.CompressorStream;
 
-import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Writes with 4mc files, compressed block format leveraging LZ4 compression power.
+ * Blocks are always packed full, whatever the size of writes, and each block goes out
+ * with a single write of header and payload, with no per-block allocation.
  */
 public class FourMcOutputStream extends CompressorStream {
 
     private static final Log LOG = LogFactory.getLog(FourMcOutputStream.class);
 
-    private List<Long> blockOffsets;
-    private CountingOutputStream cout;
+    private static final int BLOCK_HEADER_SIZE = ParallelBlockCompressor.BLOCK_HEADER_SIZE;
+
+    // absolute offsets of blocks, for the footer index
+    private long[] blockOffsets;
+    // uncompressed size of blocks, for version 2 footer
+    private int[] blockSizes;
+    private int blockCount;
+    private long uncompressedBytes;
+    private int footerVersion = FourMcCodec.FOURMC_VERSION;
+    // number of bytes written to underlying stream so far
+    private long streamOffset;
+    private final int blockSize;
+    // compressor created for this stream only, otherwise it comes from CodecPool
+    private final boolean ownsCompressor;
+
+    // set only when compressing blocks on a pool of worker threads
+    private ParallelBlockCompressor parallel;
+    private ParallelBlockCompressor.Block currentBlock;
+
+    // set only when hopeless blocks must be stored as plain without trying to compress them
+    private IncompressibilityProbe probe;
+
+    // set only when blocks are written by a background thread while next one is compressed
+    private BackgroundBlockWriter writer;
 
     static {
         if (FourMcNativeCodeLoader.isNativeCodeLoaded()) {
@@ -66,7 +89,10 @@ public class FourMcOutputStream extends CompressorStream {
         }
     }
 
-    protected static void write4mcHeader(OutputStream out) throws IOException {
+    /**
+     * Writes 4mc header, returning its size.
+     */
+    protected static int write4mcHeader(OutputStream out) throws IOException {
         DataOutputBuffer dob = new DataOutputBuffer();
         try {
             dob.writeInt(FourMcCodec.FOURMC_MAGIC);
@@ -74,25 +100,98 @@ public class FourMcOutputStream extends CompressorStream {
             int checksum = Lz4Compressor.xxhash32(dob.getData(),0,8,0);
             dob.writeInt(checksum);
             out.write(dob.getData(), 0, dob.getLength());
+            return dob.getLength();
         } finally {
             dob.close();
         }
     }
 
     public FourMcOutputStream(OutputStream out, Compressor compressor, int bufferSize)  throws IOException {
-        super(new CountingOutputStream(out), compressor, bufferSize);
+        this(out, compressor, bufferSize, 1);
+    }
+
+    /**
+     * Creates the stream, compressing blocks on the given number of threads.
+     * Buffer size is the uncompressed block size, up to the max allowed by the format.
+     * With more than one thread, blocks are compressed concurrently but still written in order,
+     * producing exactly the same output of the serial path.
+     */
+    public FourMcOutputStream(OutputStream out, Compressor compressor, int bufferSize, int compressThreads)  throws IOException {
+        this(out, compressor, bufferSize, compressThreads, false);
+    }
+
+    /**
+     * Same as above; when ownsCompressor is true, compressor direct buffers are released on close,
+     * otherwise compressor is left intact, ready to be returned to CodecPool.
+     */
+    FourMcOutputStream(OutputStream out, Compressor compressor, int bufferSize, int compressThreads,
+                       boolean ownsCompressor)  throws IOException {
+        // stream buffer holds block header followed by compressed (or plain) block data
+        super(out, compressor, BLOCK_HEADER_SIZE + Lz4Compressor.compressBound(blockSize(compressor, bufferSize)));
 
-        this.cout = (CountingOutputStream) this.out;
-        this.blockOffsets = new ArrayList<Long>(32);
+        this.blockSize = blockSize(compressor, bufferSize);
+        this.blockOffsets = new long[32];
+        this.blockSizes = new int[32];
+        this.ownsCompressor = ownsCompressor;
+        ((Lz4Compressor) compressor).setChecksumEnabled(true);
 
         try {
-            write4mcHeader(this.out);
+            streamOffset = write4mcHeader(this.out);
         } catch (IOException e) {
-            // force release compressor and related direct buffers
-            ((Lz4Compressor)this.compressor).releaseDirectBuffers();
+            if (ownsCompressor) {
+                // force release compressor and related direct buffers
+                ((Lz4Compressor)this.compressor).releaseDirectBuffers();
+            }
             this.compressor=null;
             throw e;
         }
+
+        if (compressThreads > 1) {
+            parallel = new ParallelBlockCompressor(compressor, compressThreads, blockSize,
+                    Lz4Compressor.compressBound(blockSize));
+        }
+    }
+
+    // block size cannot exceed what the compressor can handle in one go
+    private static int blockSize(Compressor compressor, int bufferSize) {
+        return (int) Math.min(bufferSize, ((Lz4Compressor) compressor).getDirectBufferSize());
+    }
+
+    /**
+     * Sets the probe checked before compressing each block, null (default) to always compress.
+     */
+    public void setIncompressibilityProbe(IncompressibilityProbe probe) {
+        this.probe = probe;
+        if (parallel != null) {
+            parallel.setProbe(probe);
+        }
+    }
+
+    public IncompressibilityProbe getIncompressibilityProbe() {
+        return probe;
+    }
+
+    /**
+     * Lets up to the given number of compressed blocks wait to be written by a background thread,
+     * so that compression of next block overlaps with the write of previous ones; 0 (default) writes in place.
+     * Applies to serial compression only, compress threads already overlap with the writer.
+     * Must be called before any write.
+     */
+    public void setWriteBehind(int blocks) {
+        if (blocks > 0 && parallel == null && writer == null) {
+            writer = new BackgroundBlockWriter(out, buffer.length, blocks);
+        }
+    }
+
+    /**
+     * Selects the footer written on close: FourMcCodec.FOURMC_VERSION (default) or FourMcCodec.FOURMC_FOOTER_VERSION_2,
+     * which also stores uncompressed size of each block, block size and total uncompressed bytes.
+     */
+    public void setFooterVersion(int version) {
+        if (version != FourMcCodec.FOURMC_VERSION && version != FourMcCodec.FOURMC_FOOTER_VERSION_2) {
+            throw new IllegalArgumentException("Unsupported 4mc footer version: " + version);
+        }
+        footerVersion = version;
     }
 
     /**
@@ -102,47 +201,80 @@ public class FourMcOutputStream extends CompressorStream {
     public void close() throws IOException {
         if (closed) return;
 
-        finish();
+        try {
+            try {
+                finish();
+            } finally {
+                if (writer != null) {
+                    writer.close();
+                    writer = null;
+                }
+            }
+            writeFooter();
+            out.close();
+        } finally {
+            // release threads and direct buffers even when footer or close fails
+            closed = true;
 
-        // write last block marker
-        rawWriteInt(0);
-        rawWriteInt(0);
-        rawWriteInt(0);
+            if (parallel != null) {
+                parallel.close();
+                parallel = null;
+            }
 
-        // time to write footer with block index
-        int footerSize = 20 + blockOffsets.size()*4;
-        DataOutputBuffer dob = new DataOutputBuffer();
+            if (compressor != null) {
+                if (ownsCompressor) {
+                    // force release compressor and related direct buffers
+                    ((Lz4Compressor)compressor).releaseDirectBuffers();
+                } else {
+                    // pooled compressor: left intact, ready for next stream
+                    compressor.reset();
+                }
+                compressor = null;
+            }
+        }
+    }
+
+    /**
+     * Writes last block marker, followed by footer with block index.
+     */
+    private void writeFooter() throws IOException {
+        boolean v2 = footerVersion == FourMcCodec.FOURMC_FOOTER_VERSION_2;
+        int footerSize = v2 ? 36 + blockCount*8 : 20 + blockCount*4;
+        DataOutputBuffer dob = new DataOutputBuffer(BLOCK_HEADER_SIZE + footerSize);
+        dob.writeInt(0);
+        dob.writeInt(0);
+        dob.writeInt(0);
         dob.writeInt(footerSize);
-        dob.writeInt(FourMcCodec.FOURMC_VERSION);
+        dob.writeInt(footerVersion);
+        if (v2) {
+            dob.writeInt(blockCount);
+            dob.writeInt(blockSize);
+            dob.writeLong(uncompressedBytes);
+        }
 
         // write block deltas
-        for (int i=0; i< blockOffsets.size(); ++i) {
-            long blockDelta = i==0 ? ( blockOffsets.get(i) ) : (blockOffsets.get(i) - blockOffsets.get(i-1));
+        for (int i=0; i< blockCount; ++i) {
+            long blockDelta = i==0 ? ( blockOffsets[i] ) : (blockOffsets[i] - blockOffsets[i-1]);
             dob.writeInt((int)blockDelta);
         }
+        if (v2) {
+            for (int i=0; i< blockCount; ++i) {
+                dob.writeInt(blockSizes[i]);
+            }
+        }
 
         // tail of footer and checksum
         dob.writeInt(footerSize);
         dob.writeInt(FourMcCodec.FOURMC_MAGIC);
-        int checksum = Lz4Compressor.xxhash32(dob.getData(),0,dob.getLength(),0);
+        int checksum = Lz4Compressor.xxhash32(dob.getData(),BLOCK_HEADER_SIZE,footerSize-4,0);
         dob.writeInt(checksum);
         out.write(dob.getData(), 0, dob.getLength());
-
-        out.close();
-        closed = true;
-
-        // force release compressor and related direct buffers
-        ((Lz4Compressor)compressor).releaseDirectBuffers();
-        compressor=null;
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        // exactly like the  case of LzopOutputStream this is a bit complex
-        // to be able to handle custom needs of block compression and related block indexes
-
         // Sanity checks
-        if (compressor.finished()) {
+        if (closed) {
             throw new IOException("write beyond end of stream");
         }
         if (b == null) {
@@ -154,98 +286,191 @@ public class FourMcOutputStream extends CompressorStream {
             return;
         }
 
-        long limlen = compressor.getBytesRead();
-        if (len + limlen > FourMcCodec.FOURMC_MAX_BLOCK_SIZE && limlen > 0) {
-            finish();
-            compressor.reset();
+        if (parallel != null) {
+            writeParallel(b, off, len);
+            return;
         }
 
-        if (len > FourMcCodec.FOURMC_MAX_BLOCK_SIZE) {
-            do {
-                int bufLen = Math.min(len, FourMcCodec.FOURMC_MAX_BLOCK_SIZE);
-                compressor.setInput(b, off, bufLen);
-                finish();
-                compressor.reset();
-                off += bufLen;
-                len -= bufLen;
-            } while (len > 0);
+        // fill the compressor direct buffer up to block size, compressing as soon as it is full
+        while (len > 0) {
+            int bufLen = Math.min(len, blockSize - (int) compressor.getBytesRead());
+            compressor.setInput(b, off, bufLen);
+            off += bufLen;
+            len -= bufLen;
+            if (compressor.getBytesRead() == blockSize) {
+                compress();
+            }
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of the given buffer, with the same block boundaries of byte array writes.
+     * Whole blocks of direct buffers are compressed straight from caller memory, partial ones are copied
+     * directly into compressor buffer: either way no heap staging is needed.
+     */
+    public void write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new IOException("write beyond end of stream");
+        }
+
+        if (parallel != null) {
+            while (src.hasRemaining()) {
+                if (currentBlock == null) {
+                    currentBlock = parallel.nextBlock();
+                }
+                int bufLen = Math.min(src.remaining(), currentBlock.remaining());
+                src.get(currentBlock.data, BLOCK_HEADER_SIZE + currentBlock.length, bufLen);
+                currentBlock.length += bufLen;
+                if (currentBlock.remaining() == 0) {
+                    submitCurrentBlock();
+                }
+            }
             return;
         }
 
-        // Give data to the compressor
-        compressor.setInput(b, off, len);
-        if (!compressor.needsInput()) {
-            do {
-                compress();
-            } while (!compressor.needsInput());
+        Lz4Compressor c = (Lz4Compressor) compressor;
+        while (src.hasRemaining()) {
+            int pending = (int) c.getBytesRead();
+            if (pending == 0 && src.isDirect() && src.remaining() >= blockSize) {
+                compressDirect(c, src);
+            } else {
+                c.setInput(src, blockSize - pending);
+                if (c.getBytesRead() == blockSize) {
+                    compress();
+                }
+            }
         }
     }
 
-    @Override
-    public void finish() throws IOException {
-        if (!compressor.finished()) {
-            compressor.finish();
-            while (!compressor.finished()) {
-                compress();
+    /**
+     * Compresses and writes a whole block taken from the given direct buffer.
+     */
+    private void compressDirect(Lz4Compressor c, ByteBuffer src) throws IOException {
+        boolean compressed = probe == null || !probe.isIncompressible(src, src.position(), blockSize);
+        int len = compressed ? c.compressDirect(src, blockSize, buffer, BLOCK_HEADER_SIZE) : blockSize;
+        // native compression hashed the payload in the same call, be it compressed data or input
+        int checksum = compressed ? c.getChecksum() : 0;
+        if (len >= blockSize) {
+            // compression cannot reduce size: write uncompressed data block
+            src.get(buffer, BLOCK_HEADER_SIZE, blockSize);
+            len = blockSize;
+            if (!compressed) {
+                checksum = Lz4Compressor.xxhash32(buffer, BLOCK_HEADER_SIZE, len, 0);
             }
+        } else {
+            src.position(src.position() + blockSize);
         }
+
+        ParallelBlockCompressor.writeBlockHeader(buffer, blockSize, len, checksum);
+        writeFrame(buffer, BLOCK_HEADER_SIZE + len, blockSize);
     }
 
-    @Override
-    protected void compress() throws IOException {
-        int len = compressor.compress(buffer, 0, buffer.length);
-
-        if (len > 0) {
-            // new block. take current position to for block index
-            blockOffsets.add(cout.bytesWritten);
-
-            rawWriteInt((int) compressor.getBytesRead());
-
-            if (compressor.getBytesRead() <= compressor.getBytesWritten()) {
-                // write uncompressed data block
-                byte[] uncompressed = ((Lz4Compressor) compressor).uncompressedBytes();
-                rawWriteInt(uncompressed.length);
-                int checksum = Lz4Compressor.xxhash32(uncompressed, 0, uncompressed.length, 0);
-                rawWriteInt(checksum);
-                out.write(uncompressed, 0, uncompressed.length);
-
-                // fix by Xianjin YE (advancedxy) to https://github.com/carlomedas/4mc/issues/12
-                compressor.reset(); // reset compressor buffers
-                compressor.finish(); // set compressor to be finished.
-
-            } else {     // write compressed data block
-                rawWriteInt(len);
-                int checksum = Lz4Compressor.xxhash32(buffer, 0, len, 0);
-                rawWriteInt(checksum);
-                out.write(buffer, 0, len);
+    /**
+     * Same block boundaries of the serial path, so that output is the same.
+     */
+    private void writeParallel(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (currentBlock == null) {
+                currentBlock = parallel.nextBlock();
+            }
+            int bufLen = currentBlock.append(b, off, len);
+            off += bufLen;
+            len -= bufLen;
+            if (currentBlock.remaining() == 0) {
+                submitCurrentBlock();
             }
         }
     }
 
-    private void rawWriteInt(int v) throws IOException {
-        out.write((v >>> 24) & 0xFF);
-        out.write((v >>> 16) & 0xFF);
-        out.write((v >>> 8) & 0xFF);
-        out.write((v ) & 0xFF);
+    private void submitCurrentBlock() throws IOException {
+        parallel.submit(currentBlock);
+        currentBlock = null;
+
+        // write what is already available, waiting only when too many blocks are in flight
+        while (parallel.isFull() || parallel.hasCompletedBlock()) {
+            writeBlock(parallel.take());
+        }
     }
 
-    /* keeps count of number of bytes written. */
-    private static class CountingOutputStream extends FilterOutputStream {
-        public CountingOutputStream(OutputStream out) {
-            super(out);
+    private void writeBlock(ParallelBlockCompressor.Block block) throws IOException {
+        writeFrame(block.frame, block.frameLength, block.length);
+        parallel.recycle(block);
+    }
+
+    /**
+     * Writes block header and payload in one go, taking note of block offset and uncompressed size.
+     */
+    private void writeFrame(byte[] frame, int frameLength, int uncompressedLen) throws IOException {
+        if (blockCount == blockOffsets.length) {
+            blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+            blockSizes = Arrays.copyOf(blockSizes, blockCount * 2);
         }
+        blockSizes[blockCount] = uncompressedLen;
+        blockOffsets[blockCount++] = streamOffset;
+        uncompressedBytes += uncompressedLen;
+        streamOffset += frameLength;
+        if (writer != null) {
+            // frame is the stream buffer: next block goes into another one
+            writer.write(frame, frameLength);
+            buffer = writer.nextFrame();
+        } else {
+            out.write(frame, 0, frameLength);
+        }
+    }
 
-        long bytesWritten = 0;
+    @Override
+    public void finish() throws IOException {
+        if (parallel != null) {
+            if (currentBlock != null && currentBlock.length > 0) {
+                submitCurrentBlock();
+            }
+            while (!parallel.isEmpty()) {
+                writeBlock(parallel.take());
+            }
+            return;
+        }
+        compress();
+        if (writer != null) {
+            writer.drain();
+        }
+    }
 
-        public void write(byte[] b, int off, int len) throws IOException {
-            out.write(b, off, len);
-            bytesWritten += len;
+    @Override
+    public void flush() throws IOException {
+        if (writer != null) {
+            writer.drain();
         }
+        out.flush();
+    }
 
-        public void write(int b) throws IOException {
-            out.write(b);
-            bytesWritten++;
+    /**
+     * Compresses and writes current block, if any.
+     */
+    @Override
+    protected void compress() throws IOException {
+        int uncompressedLen = (int) compressor.getBytesRead();
+        if (uncompressedLen == 0) {
+            return;
         }
+
+        Lz4Compressor c = (Lz4Compressor) compressor;
+        int len, checksum;
+        if (probe != null && probe.isIncompressible(c.getUncompressedDirectBuf(), 0, uncompressedLen)) {
+            len = c.uncompressedBytes(buffer, BLOCK_HEADER_SIZE);
+            checksum = Lz4Compressor.xxhash32(buffer, BLOCK_HEADER_SIZE, len, 0);
+        } else {
+            c.finish();
+            len = c.compress(buffer, BLOCK_HEADER_SIZE, buffer.length - BLOCK_HEADER_SIZE);
+            // native compression hashed the payload in the same call, be it compressed data or input
+            checksum = c.getChecksum();
+            if (len >= uncompressedLen) {
+                // compression cannot reduce size: write uncompressed data block
+                len = c.uncompressedBytes(buffer, BLOCK_HEADER_SIZE);
+            }
+        }
+        c.reset();
+
+        ParallelBlockCompressor.writeBlockHeader(buffer, uncompressedLen, len, checksum);
+        writeFrame(buffer, BLOCK_HEADER_SIZE + len, uncompressedLen);
     }
 }
-
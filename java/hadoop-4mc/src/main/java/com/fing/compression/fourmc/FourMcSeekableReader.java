@@ -0,0 +1,122 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc;
+
+import com.fing.compression.fourmc.util.BlockCache;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Random access reader of a 4mc file by uncompressed position, for point lookups of data whose
+ * uncompressed offset is known: a seek decodes only the block holding the target position.
+ * Block offsets come from the footer index, so the file must have been written with it.
+ * Decoded blocks go through the JVM-wide {@link BlockCache}, when enabled.
+ * Local files can be read through a memory mapping instead of a FileSystem.
+ */
+public class FourMcSeekableReader extends BlockSeekableReader {
+
+    private final FourMcInputStream stream;
+
+    public FourMcSeekableReader(FileSystem fs, Path file) throws IOException {
+        this(fs, fs.getFileStatus(file));
+    }
+
+    /**
+     * Same as above, for a file whose status is already known: index is read through the stream reading blocks.
+     */
+    public FourMcSeekableReader(FileSystem fs, FileStatus status) throws IOException {
+        this(status, fs.open(status.getPath()));
+    }
+
+    private FourMcSeekableReader(FileStatus status, FSDataInputStream in) throws IOException {
+        this(readIndex(in, status.getLen()), in);
+        stream.setBlockCache(BlockCache.getInstance(), BlockCache.FileId.of(status));
+    }
+
+    /**
+     * Reads a local file through a memory mapping: footer index and blocks are read in place from mapped memory,
+     * with no read system call and no copy of compressed data.
+     */
+    public FourMcSeekableReader(File file) throws IOException {
+        this(new MappedFileInputStream(file));
+        stream.setBlockCache(BlockCache.getInstance(), BlockCache.FileId.of(file));
+    }
+
+    private FourMcSeekableReader(MappedFileInputStream mapped) throws IOException {
+        this(readIndex(new FSDataInputStream(mapped), mapped.length()), new FSDataInputStream(mapped), mapped);
+    }
+
+    private FourMcSeekableReader(FourMcBlockIndex index, FSDataInputStream in) throws IOException {
+        this(index, in, in);
+    }
+
+    private FourMcSeekableReader(FourMcBlockIndex index, FSDataInputStream in, InputStream streamIn) throws IOException {
+        this(in, openStream(streamIn), index);
+    }
+
+    private FourMcSeekableReader(FSDataInputStream in, FourMcInputStream stream, FourMcBlockIndex index) {
+        super(in, stream, index.getPositions(), index.getUncompressedPositions());
+        this.stream = stream;
+    }
+
+    private static FourMcInputStream openStream(InputStream in) throws IOException {
+        try {
+            // decompressor belongs to the stream, released on close
+            return new FourMcInputStream(in, new Lz4Decompressor(), FourMcCodec.FOURMC_MAX_BLOCK_SIZE, true);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static FourMcBlockIndex readIndex(FSDataInputStream in, long length) throws IOException {
+        try {
+            return FourMcInputStream.readIndex(in, length);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void seekToBlock(long offset) throws IOException {
+        stream.seekToBlock(offset);
+    }
+}
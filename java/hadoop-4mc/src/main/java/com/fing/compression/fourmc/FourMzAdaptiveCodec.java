@@ -0,0 +1,74 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc;
+
+import org.apache.hadoop.io.compress.Compressor;
+
+/**
+ * Handles 4mz file format, using ZSTD at a level adapted block by block to keep up with a throughput target:
+ * "io.compression.codec.4mz.adaptive.throughput" in MB/s (default 100), within
+ * "io.compression.codec.4mz.adaptive.minlevel" and "io.compression.codec.4mz.adaptive.maxlevel" (default 1 to 19).
+ * Decompression is the same, as usual.
+ */
+public class FourMzAdaptiveCodec extends FourMzCodec {
+
+    public static final String FOURMZ_ADAPTIVE_THROUGHPUT_KEY = "io.compression.codec.4mz.adaptive.throughput";
+    public static final String FOURMZ_ADAPTIVE_MIN_LEVEL_KEY = "io.compression.codec.4mz.adaptive.minlevel";
+    public static final String FOURMZ_ADAPTIVE_MAX_LEVEL_KEY = "io.compression.codec.4mz.adaptive.maxlevel";
+
+    @Override
+    public Class<? extends Compressor> getCompressorType() {
+        if (!isNativeLoaded(getConf())) {
+            throw new RuntimeException("native hadoop-4mc library not available");
+        }
+        return ZstdAdaptiveCompressor.class;
+    }
+
+    @Override
+    public Compressor createCompressor() {
+        assert getConf() != null : "Configuration cannot be null! You must call setConf() before creating a compressor.";
+        if (!isNativeLoaded(getConf())) {
+            throw new RuntimeException("native hadoop-4mc library not available");
+        }
+
+        if (getConf() == null) {
+            return new ZstdAdaptiveCompressor(getCompressionBlockSize());
+        }
+        return new ZstdAdaptiveCompressor(getCompressionBlockSize(),
+                getConf().getInt(FOURMZ_ADAPTIVE_THROUGHPUT_KEY, ZstdAdaptiveCompressor.DEFAULT_TARGET_MBPS),
+                getConf().getInt(FOURMZ_ADAPTIVE_MIN_LEVEL_KEY, ZstdAdaptiveCompressor.DEFAULT_MIN_LEVEL),
+                getConf().getInt(FOURMZ_ADAPTIVE_MAX_LEVEL_KEY, ZstdAdaptiveCompressor.DEFAULT_MAX_LEVEL));
+    }
+
+}
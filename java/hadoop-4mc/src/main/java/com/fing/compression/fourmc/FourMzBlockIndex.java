@@ -34,6 +34,7 @@
 
 package com.fing.compression.fourmc;
 
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
@@ -50,6 +51,9 @@ public class FourMzBlockIndex {
     public static final long NOT_FOUND = -1;
 
     private long[] blockOffsets;
+    // known from a version 2 footer only: running total of uncompressed block sizes, one more than blocks
+    private long[] uncompressedPositions;
+    private int blockSize = -1;
 
     /**
      * Create an empty index, typically indicating no index file exists.
@@ -71,6 +75,83 @@ public class FourMzBlockIndex {
         blockOffsets[blockNo] = offset;
     }
 
+    /**
+     * Set the uncompressed size of all blocks, along with the block size the file was written with.
+     */
+    public void setUncompressedSizes(int[] sizes, int blockSize) {
+        if (sizes.length != getNumberOfBlocks()) {
+            throw new IllegalArgumentException("Expected " + getNumberOfBlocks() + " block sizes, got " + sizes.length);
+        }
+        uncompressedPositions = new long[sizes.length + 1];
+        for (int i = 0; i < sizes.length; ++i) {
+            uncompressedPositions[i + 1] = uncompressedPositions[i] + sizes[i];
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Return true if uncompressed sizes are known, i.e. the index comes from a version 2 footer.
+     */
+    public boolean hasUncompressedSizes() {
+        return uncompressedPositions != null;
+    }
+
+    /**
+     * Get the uncompressed size of a given block, or NOT_FOUND if unknown.
+     */
+    public long getUncompressedSize(int block) {
+        if (uncompressedPositions == null) {
+            return NOT_FOUND;
+        }
+        return uncompressedPositions[block + 1] - uncompressedPositions[block];
+    }
+
+    /**
+     * Get the position of a given block in uncompressed data, or NOT_FOUND if unknown.
+     */
+    public long getUncompressedPosition(int block) {
+        if (uncompressedPositions == null) {
+            return NOT_FOUND;
+        }
+        return uncompressedPositions[block];
+    }
+
+    /**
+     * Get the uncompressed size of the whole file, or NOT_FOUND if unknown.
+     */
+    public long getTotalUncompressedBytes() {
+        if (uncompressedPositions == null) {
+            return NOT_FOUND;
+        }
+        return uncompressedPositions[uncompressedPositions.length - 1];
+    }
+
+    /**
+     * Get the block size the file was written with, or NOT_FOUND if unknown.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Return the index of block holding the given uncompressed position.
+     * Returns NOT_FOUND if it's out of bounds or uncompressed sizes are unknown.
+     */
+    public long findBlockAtUncompressedPosition(long pos) {
+        if (uncompressedPositions == null || pos < 0 || pos >= getTotalUncompressedBytes()) {
+            return NOT_FOUND;
+        }
+        int block = Arrays.binarySearch(uncompressedPositions, pos);
+        if (block < 0) {
+            block = -block - 2;
+        }
+        // skip empty blocks starting at the same position
+        while (uncompressedPositions[block + 1] == pos) {
+            ++block;
+        }
+        return block;
+    }
+
     /**
      * Get the total number of blocks in the index file.
      */
@@ -123,6 +204,20 @@ public class FourMzBlockIndex {
     }
 
 
+    /**
+     * Offsets of all blocks, in file order.
+     */
+    long[] getPositions() {
+        return isEmpty() ? new long[0] : blockOffsets.clone();
+    }
+
+    /**
+     * Uncompressed positions of all blocks followed by the total uncompressed size, or null if unknown.
+     */
+    long[] getUncompressedPositions() {
+        return uncompressedPositions == null ? null : uncompressedPositions.clone();
+    }
+
     /**
      * Return true if the index has no blocks set.
      */
@@ -182,6 +277,16 @@ public class FourMzBlockIndex {
         return FourMzInputStream.readIndex(fs, file);
     }
 
+    /**
+     * Read the FourMzBlockIndex of the 4mz file whose status is already known, saving a request for it.
+     * @param fs     The index file is on this file system.
+     * @param status status of the file whose index we are reading
+     * @throws java.io.IOException
+     */
+    public static FourMzBlockIndex readIndex(FileSystem fs, FileStatus status) throws IOException {
+        return FourMzInputStream.readIndex(fs, status);
+    }
+
 }
 
 
@@ -33,6 +33,10 @@
 **/
 package com.fing.compression.fourmc;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.compress.CompressionInputStream;
 import org.apache.hadoop.io.compress.CompressionOutputStream;
 import org.apache.hadoop.io.compress.Compressor;
@@ -49,21 +53,58 @@ public class FourMzCodec extends ZstdCodec {
 
     public static final int FOURMZ_MAGIC = 0x344D5A00;
     public static final int FOURMZ_VERSION = 1;
+    // footer also holding uncompressed block sizes and file totals
+    public static final int FOURMZ_FOOTER_VERSION_2 = 2;
     public static final int FOURMC_MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+    public static final int FOURMZ_MIN_BLOCK_SIZE = 64 * 1024;
+    // 4mz v2: blocks bigger than 4MB, header declaring max block size
+    public static final int FOURMZ_VERSION_2 = 2;
+    public static final int FOURMZ_V2_MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+    // 4mz v2 header extension entry: trained zstd dictionary all blocks are compressed with
+    public static final int FOURMZ_EXT_ZSTD_DICTIONARY = 1;
     public static final String FOURMZ_DEFAULT_EXTENSION = ".4mz";
     public static final String FOURMZ_BLOCK_SIZE_KEY = "io.compression.codec.4mz.blocksize";
+    public static final String FOURMZ_COMPRESS_THREADS_KEY = "io.compression.codec.4mz.compress.threads";
+    public static final String FOURMZ_WRITE_BEHIND_KEY = "io.compression.codec.4mz.writebehind.blocks";
+    public static final String FOURMZ_FOOTER_VERSION_KEY = "io.compression.codec.4mz.footer.version";
+    public static final String FOURMZ_READ_AHEAD_KEY = "io.compression.codec.4mz.readahead.blocks";
+    public static final String FOURMZ_DECOMPRESS_THREADS_KEY = "io.compression.codec.4mz.decompress.threads";
+    public static final String FOURMZ_CHECKSUM_VERIFY_KEY = "io.compression.codec.4mz.checksum.verify";
+    public static final String FOURMZ_CHECKSUM_SAMPLE_INTERVAL_KEY = "io.compression.codec.4mz.checksum.sample.interval";
+    public static final String FOURMZ_PROBE_KEY = "io.compression.codec.4mz.probe";
+    public static final String FOURMZ_PROBE_MIN_GAIN_KEY = "io.compression.codec.4mz.probe.mingain";
+    public static final String FOURMZ_BLOCK_CACHE_KEY = "io.compression.codec.4mz.blockcache.bytes";
+    public static final String FOURMZ_WINDOW_LOG_KEY = "io.compression.codec.4mz.windowlog";
+    public static final String FOURMZ_LONG_DISTANCE_MATCHING_KEY = "io.compression.codec.4mz.ldm";
+    public static final String FOURMZ_DICTIONARY_KEY = "io.compression.codec.4mz.dictionary";
+
+    // dictionary loaded from FOURMZ_DICTIONARY_KEY path, kept as long as configured path does not change
+    private String dictionaryPath;
+    private byte[] dictionary;
 
     @Override
     public CompressionOutputStream createOutputStream(OutputStream out) throws IOException {
-        return createOutputStream(out, createCompressor());
+        // compressor belongs to the stream, released on close
+        return createOutputStream(out, createCompressor(), true);
     }
 
     @Override
     public CompressionOutputStream createOutputStream(OutputStream out, Compressor compressor) throws IOException {
+        return createOutputStream(out, compressor, false);
+    }
+
+    private CompressionOutputStream createOutputStream(OutputStream out, Compressor compressor,
+                                                       boolean ownsCompressor) throws IOException {
         if (!isNativeLoaded(getConf())) {
             throw new RuntimeException("native hadoop-4mc library not available");
         }
-        return new FourMzOutputStream(out, compressor, FOURMC_MAX_BLOCK_SIZE);
+        applyZstdSettings(compressor);
+        applyDictionary(compressor);
+        FourMzOutputStream stream = new FourMzOutputStream(out, compressor, getCompressionBlockSize(), getCompressionThreads(), ownsCompressor);
+        stream.setIncompressibilityProbe(createIncompressibilityProbe());
+        stream.setWriteBehind(getWriteBehindBlocks());
+        stream.setFooterVersion(getFooterVersion());
+        return stream;
     }
 
     @Override
@@ -71,12 +112,24 @@ public class FourMzCodec extends ZstdCodec {
         if (!isNativeLoaded(getConf())) {
             throw new RuntimeException("native hadoop-4mc library not available");
         }
-        return new FourMzInputStream(in, decompressor, FOURMC_MAX_BLOCK_SIZE);
+        FourMzInputStream stream = new FourMzInputStream(in, decompressor, getCompressionBlockSize(), false);
+        stream.setReadAhead(getReadAheadBlocks());
+        stream.setDecompressThreads(getDecompressionThreads());
+        stream.setChecksumVerification(new ChecksumVerification(getChecksumVerifyInterval()));
+        return stream;
     }
 
     @Override
     public CompressionInputStream createInputStream(InputStream in) throws IOException {
-        return createInputStream(in, createDecompressor());
+        if (!isNativeLoaded(getConf())) {
+            throw new RuntimeException("native hadoop-4mc library not available");
+        }
+        // decompressor belongs to the stream, released on close
+        FourMzInputStream stream = new FourMzInputStream(in, createDecompressor(), getCompressionBlockSize(), true);
+        stream.setReadAhead(getReadAheadBlocks());
+        stream.setDecompressThreads(getDecompressionThreads());
+        stream.setChecksumVerification(new ChecksumVerification(getChecksumVerifyInterval()));
+        return stream;
     }
 
     @Override
@@ -92,7 +145,7 @@ public class FourMzCodec extends ZstdCodec {
         if (!isNativeLoaded(getConf())) {
             throw new RuntimeException("native hadoop-4mc library not available");
         }
-        return new ZstdDecompressor(FOURMC_MAX_BLOCK_SIZE);
+        return new ZstdDecompressor(getCompressionBlockSize());
     }
 
     @Override
@@ -120,15 +173,173 @@ public class FourMzCodec extends ZstdCodec {
     }
 
     /**
-     * 4MB has been decided to be the hard value here.
-     * Block size cannot overcome 4MB limit (default). Can be configured as "io.compression.codec.4mc.blocksize"
+     * Block size, configured as "io.compression.codec.4mz.blocksize", from 64KB up to 64MB, default 4MB.
+     * Smaller blocks mean finer splits and faster random access, at the cost of some compression ratio.
+     * Blocks bigger than 4MB are written with 4mz format v2, readable only by v2 aware readers.
+     * Readers handle any block size, whatever the configured one.
      */
     protected int getCompressionBlockSize() {
-        return FOURMC_MAX_BLOCK_SIZE;
-        /*int bufferSize = getConf().getInt(FOURMZ_BLOCK_SIZE_KEY, FOURMZ_MAX_BLOCK_SIZE);
-        if (bufferSize<1024*100 || bufferSize>FOURMZ_MAX_BLOCK_SIZE) {
-            bufferSize = FOURMZ_MAX_BLOCK_SIZE;
+        return getCompressionBlockSize(getConf());
+    }
+
+    /**
+     * Block size of the given configuration, also used by compressors reinitialized by CodecPool.
+     */
+    static int getCompressionBlockSize(Configuration conf) {
+        if (conf == null) {
+            return FOURMC_MAX_BLOCK_SIZE;
+        }
+        int bufferSize = conf.getInt(FOURMZ_BLOCK_SIZE_KEY, FOURMC_MAX_BLOCK_SIZE);
+        if (bufferSize < FOURMZ_MIN_BLOCK_SIZE || bufferSize > FOURMZ_V2_MAX_BLOCK_SIZE) {
+            bufferSize = FOURMC_MAX_BLOCK_SIZE;
+        }
+        return bufferSize;
+    }
+
+    /**
+     * Number of threads compressing blocks of the same output stream, configured as "io.compression.codec.4mz.compress.threads".
+     * Default is 1, meaning blocks are compressed by the writer thread itself.
+     */
+    protected int getCompressionThreads() {
+        if (getConf() == null) {
+            return 1;
+        }
+        return Math.max(1, getConf().getInt(FOURMZ_COMPRESS_THREADS_KEY, 1));
+    }
+
+    /**
+     * Number of compressed blocks that can wait to be written by a background thread, configured as
+     * "io.compression.codec.4mz.writebehind.blocks": compression then overlaps with writes to the underlying stream,
+     * using up to this many more block buffers. Default is 0, meaning blocks are written by the writer thread itself.
+     */
+    protected int getWriteBehindBlocks() {
+        if (getConf() == null) {
+            return 0;
+        }
+        return Math.max(0, getConf().getInt(FOURMZ_WRITE_BEHIND_KEY, 0));
+    }
+
+    /**
+     * Version of the footer written at end of file, configured as "io.compression.codec.4mz.footer.version".
+     * Default is 1, readable by any 4mz reader; 2 also stores uncompressed size of each block and file totals,
+     * and needs a reader of this version or later.
+     */
+    protected int getFooterVersion() {
+        if (getConf() == null) {
+            return FOURMZ_VERSION;
+        }
+        return getConf().getInt(FOURMZ_FOOTER_VERSION_KEY, FOURMZ_VERSION) == FOURMZ_FOOTER_VERSION_2
+                ? FOURMZ_FOOTER_VERSION_2 : FOURMZ_VERSION;
+    }
+
+    /**
+     * Number of blocks read and decompressed ahead by a background thread, configured as
+     * "io.compression.codec.4mz.readahead.blocks": decompression then overlaps with reads from the underlying stream,
+     * using up to this many blocks plus one of memory. Default is 0, meaning blocks are read by the reader thread itself.
+     */
+    protected int getReadAheadBlocks() {
+        if (getConf() == null) {
+            return 0;
+        }
+        return Math.max(0, getConf().getInt(FOURMZ_READ_AHEAD_KEY, 0));
+    }
+
+    /**
+     * Number of threads decompressing blocks of the same input stream, configured as "io.compression.codec.4mz.decompress.threads".
+     * Blocks are still handed to the reader in order, read-ahead is raised to at least twice this number of blocks.
+     * Default is 1, meaning blocks are decompressed one at a time.
+     */
+    protected int getDecompressionThreads() {
+        if (getConf() == null) {
+            return 1;
+        }
+        return Math.max(1, getConf().getInt(FOURMZ_DECOMPRESS_THREADS_KEY, 1));
+    }
+
+    /**
+     * Checksum verification policy of block reads, configured as "io.compression.codec.4mz.checksum.verify":
+     * "always" (default), "sampled" for one block every "io.compression.codec.4mz.checksum.sample.interval"
+     * blocks (default 16), or "off" for data already checked end to end by the file system.
+     * Returns the interval of verified blocks: 1 for all, 0 for none.
+     */
+    protected int getChecksumVerifyInterval() {
+        if (getConf() == null) {
+            return 1;
+        }
+        return ChecksumVerification.getInterval(getConf().get(FOURMZ_CHECKSUM_VERIFY_KEY, ChecksumVerification.ALWAYS),
+                getConf().getInt(FOURMZ_CHECKSUM_SAMPLE_INTERVAL_KEY, 16));
+    }
+
+    /**
+     * Applies zstd window log ("io.compression.codec.4mz.windowlog", 0 means level default)
+     * and long distance matching ("io.compression.codec.4mz.ldm", default false) to the compressor.
+     * Both let zstd find repetitions far apart in big blocks; decompression needs no settings.
+     */
+    protected void applyZstdSettings(Compressor compressor) {
+        if (getConf() == null || !(compressor instanceof ZstdCompressor)) {
+            return;
+        }
+        int windowLog = getConf().getInt(FOURMZ_WINDOW_LOG_KEY, 0);
+        if (windowLog != 0) {
+            windowLog = Math.max(ZstdCompressor.ZSTD_WINDOWLOG_MIN, Math.min(ZstdCompressor.ZSTD_WINDOWLOG_MAX, windowLog));
+        }
+        ZstdCompressor zc = (ZstdCompressor) compressor;
+        zc.setWindowLog(windowLog);
+        zc.setLongDistanceMatching(getConf().getBoolean(FOURMZ_LONG_DISTANCE_MATCHING_KEY, false));
+    }
+
+    /**
+     * Probe detecting blocks not worth compressing, enabled by "io.compression.codec.4mz.probe" (default false).
+     * Blocks whose estimated gain is below "io.compression.codec.4mz.probe.mingain" (default 0.03) are stored as plain.
+     */
+    protected IncompressibilityProbe createIncompressibilityProbe() {
+        if (getConf() == null || !getConf().getBoolean(FOURMZ_PROBE_KEY, false)) {
+            return null;
+        }
+        return new IncompressibilityProbe(getConf().getFloat(FOURMZ_PROBE_MIN_GAIN_KEY, IncompressibilityProbe.DEFAULT_MIN_GAIN));
+    }
+
+    /**
+     * Sets on the compressor the trained zstd dictionary stored at "io.compression.codec.4mz.dictionary"
+     * (see {@link ZstdCompressor#trainDictionary}), or clears it if not configured.
+     * The dictionary is embedded in the header of each file, so readers need no settings.
+     */
+    protected void applyDictionary(Compressor compressor) throws IOException {
+        if (!(compressor instanceof ZstdCompressor)) {
+            return;
+        }
+        ZstdCompressor zc = (ZstdCompressor) compressor;
+        byte[] dict = getDictionary();
+        if (dict != null) {
+            // same bytes as last set keep the dictionary digested by the compressor
+            zc.setDictionary(dict, 0, dict.length);
+        } else {
+            zc.clearDictionary();
+        }
+    }
+
+    private synchronized byte[] getDictionary() throws IOException {
+        String path = getConf() == null ? null : getConf().get(FOURMZ_DICTIONARY_KEY);
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        if (!path.equals(dictionaryPath)) {
+            Path file = new Path(path);
+            FileSystem fs = file.getFileSystem(getConf());
+            long size = fs.getFileStatus(file).getLen();
+            if (size <= 0 || size > FOURMZ_V2_MAX_BLOCK_SIZE) {
+                throw new IOException("Invalid zstd dictionary " + path + " (size " + size + ")");
+            }
+            byte[] dict = new byte[(int) size];
+            FSDataInputStream in = fs.open(file);
+            try {
+                in.readFully(0, dict);
+            } finally {
+                in.close();
+            }
+            dictionary = dict;
+            dictionaryPath = path;
         }
-        return bufferSize;*/
+        return dictionary;
     }
 }
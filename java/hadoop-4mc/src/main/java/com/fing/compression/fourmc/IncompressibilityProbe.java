@@ -0,0 +1,188 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cheap check run before compressing a block, telling if compression is hopeless, as for already
+ * compressed images or payloads: such blocks are stored as plain without paying a full LZ4/ZSTD pass.
+ * A few evenly spaced samples of the block are checked for byte entropy and for repeated 4-byte sequences:
+ * the block is skipped only when both estimated gains are below the configured minimum.
+ * Counters are kept per probe (that is per stream) and for the whole JVM.
+ */
+public class IncompressibilityProbe {
+
+    public static final float DEFAULT_MIN_GAIN = 0.03f;
+
+    private static final int SAMPLES = 16;
+    private static final int SAMPLE_SIZE = 512;
+    private static final int HASH_BITS = 12;
+
+    public static class Stats {
+        public long probedBlocks = 0;
+        public long skippedBlocks = 0;
+        public long skippedBytes = 0;
+
+        public Stats() {
+        }
+        public Stats(long probedBlocks, long skippedBlocks, long skippedBytes) {
+            this.probedBlocks = probedBlocks;
+            this.skippedBlocks = skippedBlocks;
+            this.skippedBytes = skippedBytes;
+        }
+    }
+
+    // JVM wide counters
+    private static final AtomicLong totalProbedBlocks = new AtomicLong();
+    private static final AtomicLong totalSkippedBlocks = new AtomicLong();
+    private static final AtomicLong totalSkippedBytes = new AtomicLong();
+
+    // histogram and hash table reused by each thread, probing may run on parallel compression workers
+    private static final ThreadLocal<int[][]> WORK_TABLES = new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            return new int[][]{new int[256], new int[1 << HASH_BITS]};
+        }
+    };
+
+    private final float minGain;
+    private final AtomicLong probedBlocks = new AtomicLong();
+    private final AtomicLong skippedBlocks = new AtomicLong();
+    private final AtomicLong skippedBytes = new AtomicLong();
+
+    public IncompressibilityProbe() {
+        this(DEFAULT_MIN_GAIN);
+    }
+
+    /**
+     * @param minGain min estimated size reduction (fraction of block size) worth compressing for
+     */
+    public IncompressibilityProbe(float minGain) {
+        this.minGain = minGain;
+    }
+
+    /**
+     * Returns true if the block is not worth compressing, reading len bytes of the array from off.
+     */
+    public boolean isIncompressible(byte[] b, int off, int len) {
+        return record(probe(null, b, off, len), len);
+    }
+
+    /**
+     * Same as above, reading buffer content from absolute index off, with no change to its position.
+     */
+    public boolean isIncompressible(ByteBuffer b, int off, int len) {
+        return record(probe(b, null, off, len), len);
+    }
+
+    private boolean record(boolean incompressible, int len) {
+        probedBlocks.incrementAndGet();
+        totalProbedBlocks.incrementAndGet();
+        if (incompressible) {
+            skippedBlocks.incrementAndGet();
+            skippedBytes.addAndGet(len);
+            totalSkippedBlocks.incrementAndGet();
+            totalSkippedBytes.addAndGet(len);
+        }
+        return incompressible;
+    }
+
+    private boolean probe(ByteBuffer buf, byte[] array, int off, int len) {
+        if (len <= 0) {
+            return false;
+        }
+        int[][] tables = WORK_TABLES.get();
+        int[] histogram = tables[0];
+        int[] hashes = tables[1];
+        java.util.Arrays.fill(histogram, 0);
+        java.util.Arrays.fill(hashes, -1);
+
+        // whole block when small, evenly spaced samples otherwise
+        int samples = len <= SAMPLES * SAMPLE_SIZE ? 1 : SAMPLES;
+        int sampleSize = samples == 1 ? len : SAMPLE_SIZE;
+        long stride = samples == 1 ? 0 : (long) (len - sampleSize) / (samples - 1);
+
+        int total = 0, matches = 0, seq = 0;
+        for (int s = 0; s < samples; ++s) {
+            int start = off + (int) (s * stride);
+            for (int i = 0; i < sampleSize; ++i) {
+                int v = (array != null ? array[start + i] : buf.get(start + i)) & 0xFF;
+                ++histogram[v];
+                seq = (seq << 8) | v;
+                if (i >= 3) {
+                    int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+                    if (hashes[h] == seq) {
+                        ++matches;
+                    }
+                    hashes[h] = seq;
+                }
+            }
+            total += sampleSize;
+        }
+
+        // order-0 entropy, in bits per byte
+        double entropy = 0;
+        for (int count : histogram) {
+            if (count > 0) {
+                double p = (double) count / total;
+                entropy -= p * Math.log(p);
+            }
+        }
+        entropy /= Math.log(2);
+
+        double entropyGain = 1.0 - entropy / 8.0;
+        double matchGain = (double) matches / total;
+        return entropyGain < minGain && matchGain < minGain;
+    }
+
+    public float getMinGain() {
+        return minGain;
+    }
+
+    /**
+     * Counters of this probe.
+     */
+    public Stats getStats() {
+        return new Stats(probedBlocks.get(), skippedBlocks.get(), skippedBytes.get());
+    }
+
+    /**
+     * Counters of all probes of the JVM.
+     */
+    public static Stats getTotalStats() {
+        return new Stats(totalProbedBlocks.get(), totalSkippedBlocks.get(), totalSkippedBytes.get());
+    }
+}
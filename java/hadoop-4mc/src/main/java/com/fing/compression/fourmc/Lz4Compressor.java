@@ -56,6 +56,14 @@ public class Lz4Compressor implements Compressor {
     private ByteBuffer compressedDirectBuf = null;
     private boolean finish, finished;
 
+    // native compression state reused across blocks (managed by native code), stateType tells fast, MC or HC
+    private long state = 0L;
+    private int stateType = 0;
+
+    // block checksum computed by native code along with compression, when enabled (read/written by native code)
+    private boolean checksumEnabled = false;
+    private int checksum = 0;
+
     private long bytesRead = 0L;
     private long bytesWritten = 0L;
 
@@ -66,7 +74,13 @@ public class Lz4Compressor implements Compressor {
             // Initialize the native library
             try {
                 initIDs();
+                // a library built from older sources lacks natives this class relies on, e.g. for block checksums computed along with compression:
+                // calling one of them makes such a library count as not loaded, rather than failing later on
+                freeState(0);
                 nativeLoaded = true;
+            } catch (UnsatisfiedLinkError e) {
+                LOG.error("Outdated hadoop-4mc native library, it must be rebuilt from sources: " + e);
+                nativeLoaded = false;
             } catch (Throwable t) {
                 LOG.warn(t.toString());
                 nativeLoaded = false;
@@ -87,11 +101,19 @@ public class Lz4Compressor implements Compressor {
     }
 
     /**
-     * Reinitialize from a configuration, possibly changing compression codec
+     * Reinitialize from a configuration, as done by CodecPool when handing out a pooled compressor.
+     * Direct buffers are kept, growing only if 4mc block size of the configuration needs more room:
+     * streams use blocks up to buffer size, so a bigger buffer serves any smaller block size.
+     * Compression level is given by compressor type, which is what CodecPool pools by.
      */
     //@Override (this method isn't in vanilla 0.20.2, but is in CDH3b3 and YDH)
     public void reinit(Configuration conf) {
-        init(this.directBufferSize);
+        int size = this.directBufferSize;
+        if (conf != null) {
+            size = Math.max(size, FourMcCodec.getCompressionBlockSize(conf));
+        }
+        checksumEnabled = false;
+        init(size);
     }
 
 
@@ -131,6 +153,15 @@ public class Lz4Compressor implements Compressor {
             DirectBufferPool.getInstance().release(uncompressedDirectBuf);
             uncompressedDirectBuf=null;
         }
+        releaseNativeState();
+    }
+
+    private synchronized void releaseNativeState() {
+        if (state != 0L) {
+            freeState(state);
+            state = 0L;
+            stateType = 0;
+        }
     }
 
     private void init(int directBufferSize) {
@@ -298,23 +329,99 @@ public class Lz4Compressor implements Compressor {
     }
 
     /**
-     * Used only by tests.
+     * Same as uncompressedBytes(), copying data into the given array instead of allocating a new one.
+     * Works both before and after compression. Returns the number of bytes copied.
+     */
+    public int uncompressedBytes(byte[] b, int off) {
+        int len = (int) bytesRead;
+        uncompressedDirectBuf.position(0);
+        ((ByteBuffer) uncompressedDirectBuf).get(b, off, len);
+        return len;
+    }
+
+    /**
+     * Buffer holding data given to this compressor, from index 0 up to getBytesRead().
+     */
+    ByteBuffer getUncompressedDirectBuf() {
+        return uncompressedDirectBuf;
+    }
+
+    /**
+     * Buffers up to maxLen bytes of the given buffer, as far as direct buffer has room,
+     * copying them straight from caller memory. Returns the number of bytes taken.
+     */
+    public synchronized int setInput(ByteBuffer src, int maxLen) {
+        int n = Math.min(Math.min(src.remaining(), maxLen), uncompressedDirectBuf.remaining());
+        finished = false;
+
+        int limit = src.limit();
+        src.limit(src.position() + n);
+        uncompressedDirectBuf.put(src);
+        src.limit(limit);
+        uncompressedDirectBufLen = uncompressedDirectBuf.position();
+        bytesRead += n;
+        return n;
+    }
+
+    /**
+     * Compresses len bytes of the given direct buffer, from its position, with no copy of input data:
+     * native code reads caller memory directly. Compressed data is copied to dst at dstOff, returning its size.
+     * Source position is not changed, and nothing must be pending in this compressor (as after reset()).
+     */
+    public synchronized int compressDirect(ByteBuffer src, int len, byte[] dst, int dstOff) {
+        if (!src.isDirect() || len > src.remaining() || len > directBufferSize) {
+            throw new IllegalArgumentException("Direct buffer with up to " + directBufferSize + " bytes expected");
+        }
+        ByteBuffer saved = uncompressedDirectBuf;
+        uncompressedDirectBuf = src.slice();
+        uncompressedDirectBufLen = len;
+        compressedDirectBuf.clear();
+        int n;
+        try {
+            n = compressBytesDirectSpecific();
+        } finally {
+            uncompressedDirectBuf = saved;
+            uncompressedDirectBufLen = 0;
+        }
+        compressedDirectBuf.limit(n);
+        compressedDirectBuf.get(dst, dstOff, n);
+        return n;
+    }
+
+    /**
+     * When enabled, native compression also hashes the payload 4mc stores for the block, in the same call:
+     * compressed data if smaller than input, input otherwise. Disabled by reinit().
+     */
+    public synchronized void setChecksumEnabled(boolean checksumEnabled) {
+        this.checksumEnabled = checksumEnabled;
+    }
+
+    /**
+     * XXH32 of the payload of the last block compressed with checksum enabled.
+     */
+    public synchronized int getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Size of direct buffers, that is the max uncompressed block size handled in one go.
      */
     long getDirectBufferSize() {
         return directBufferSize;
     }
 
     /**
-     * Noop.
+     * Releases native compression state, allocated again if compressor is used afterwards.
      */
     public synchronized void end() {
-        // nop
+        releaseNativeState();
     }
 
     private native static void initIDs();
 
     public native static int xxhash32(byte[] input, int offset, int len, int seed);
     public native static int compressBound(int origSize);
+    private native static void freeState(long state);
 
     protected native int compressBytesDirect();
     protected native int compressBytesDirectMC();
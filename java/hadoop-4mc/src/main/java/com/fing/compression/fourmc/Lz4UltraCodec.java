@@ -48,7 +48,7 @@ import java.io.OutputStream;
  * <b>LZ4</b> compression/decompression pair.
  * https://code.google.com/p/lz4/
  */
-public class Lz4UltraCodec implements Configurable, CompressionCodec {
+public class Lz4UltraCodec implements Configurable, DirectDecompressionCodec {
     private static final Log LOG = LogFactory.getLog(Lz4UltraCodec.class.getName());
 
     public static final int LZ4_BUFFER_SIZE = 4 * 1024 * 1024;
@@ -149,6 +149,11 @@ public class Lz4UltraCodec implements Configurable, CompressionCodec {
         return new Lz4Decompressor(LZ4_BUFFER_SIZE);
     }
 
+
+    public DirectDecompressor createDirectDecompressor() {
+        return (DirectDecompressor) createDecompressor();
+    }
+
     /**
      * Get the default filename extension for this kind of compression.
      *
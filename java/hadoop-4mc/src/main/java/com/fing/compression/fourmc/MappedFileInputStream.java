@@ -0,0 +1,175 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc;
+
+import org.apache.hadoop.fs.FSInputStream;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Input stream over a memory mapped local file: reads are plain memory copies, with no read system call,
+ * and 4mc/4mz streams take compressed blocks in place through slice(), decompressing them straight from mapped memory.
+ * Files over 2GB are mapped through a window moved as reads go on; the file is not kept open once mapped.
+ */
+class MappedFileInputStream extends FSInputStream {
+
+    // size of the mapping window of files too big to be mapped at once, larger than any block
+    private static final int WINDOW_SIZE = 1 << 30;
+
+    private final File file;
+    private final long length;
+    private ByteBuffer window;
+    private long windowStart;
+    private long pos;
+    private boolean closed;
+
+    MappedFileInputStream(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            length = raf.length();
+            map(raf.getChannel(), 0, length <= Integer.MAX_VALUE ? (int) length : WINDOW_SIZE);
+        } finally {
+            // mapping stays valid once channel is closed
+            raf.close();
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * Returns a view of next len bytes of mapped memory, moving past them.
+     */
+    synchronized ByteBuffer slice(int len) throws IOException {
+        if (len > length - pos) {
+            throw new EOFException("Premature EOF from inputStream");
+        }
+        ByteBuffer view = windowAt(pos, len).duplicate();
+        view.position((int) (pos - windowStart));
+        view.limit(view.position() + len);
+        pos += len;
+        return view.slice();
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (pos >= length) {
+            return -1;
+        }
+        ByteBuffer w = windowAt(pos, 1);
+        return w.get((int) (pos++ - windowStart)) & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (pos >= length) {
+            return -1;
+        }
+        int n = (int) Math.min(Math.min(len, length - pos), WINDOW_SIZE);
+        ByteBuffer view = windowAt(pos, n).duplicate();
+        view.position((int) (pos - windowStart));
+        view.get(b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, length - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, length - pos);
+    }
+
+    @Override
+    public synchronized void seek(long pos) throws IOException {
+        if (pos < 0 || pos > length) {
+            throw new EOFException("Cannot seek to " + pos + " out of file length " + length);
+        }
+        this.pos = pos;
+    }
+
+    @Override
+    public synchronized long getPos() throws IOException {
+        return pos;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException {
+        return false;
+    }
+
+    /**
+     * Drops the mapping, released once no view of it is left.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        window = null;
+    }
+
+    /**
+     * Returns the window holding len bytes at the given offset, mapping a new one if needed.
+     */
+    private ByteBuffer windowAt(long offset, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (offset < windowStart || offset + len > windowStart + window.limit()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                map(raf.getChannel(), offset, (int) Math.min(length - offset, WINDOW_SIZE));
+            } finally {
+                raf.close();
+            }
+        }
+        return window;
+    }
+
+    private void map(FileChannel channel, long offset, int size) throws IOException {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        windowStart = offset;
+    }
+}
@@ -0,0 +1,353 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc;
+
+import org.apache.hadoop.io.compress.Compressor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compresses 4mc/4mz blocks concurrently on a bounded pool of worker threads.
+ * Each worker uses a compressor of the same type of the stream one, blocks are handed back
+ * in submission order: this way the output is exactly the same of the serial path.
+ */
+class ParallelBlockCompressor {
+
+    // uncompressed size, compressed size, checksum
+    static final int BLOCK_HEADER_SIZE = 12;
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    /**
+     * A block going through the pipeline: uncompressed data in, frame (header and payload) to be written out.
+     * Both arrays reserve room for block header, so that a frame is always written in one go.
+     */
+    static class Block {
+        final byte[] data;
+        int length;
+
+        private final byte[] compressed;
+        byte[] frame;
+        int frameLength;
+
+        Block(int blockSize, int maxCompressedSize) {
+            this.data = new byte[BLOCK_HEADER_SIZE + blockSize];
+            this.compressed = new byte[BLOCK_HEADER_SIZE + maxCompressedSize];
+        }
+
+        int remaining() {
+            return data.length - BLOCK_HEADER_SIZE - length;
+        }
+
+        /**
+         * Appends as much as fits in the block, returning the number of bytes taken.
+         */
+        int append(byte[] b, int off, int len) {
+            int n = Math.min(len, remaining());
+            System.arraycopy(b, off, data, BLOCK_HEADER_SIZE + length, n);
+            length += n;
+            return n;
+        }
+    }
+
+    private static final AtomicInteger POOL_ID = new AtomicInteger();
+
+    private final int blockSize;
+    private final int maxCompressedSize;
+    private final int maxInFlight;
+
+    private final ExecutorService executor;
+    private final BlockingQueue<Compressor> idleCompressors;
+    private final List<Compressor> createdCompressors = new ArrayList<Compressor>();
+
+    private final ArrayDeque<Future<Block>> inFlight = new ArrayDeque<Future<Block>>();
+    private final ArrayDeque<Block> freeBlocks = new ArrayDeque<Block>();
+
+    // set only when hopeless blocks must be detected before compression
+    private volatile IncompressibilityProbe probe;
+
+    // set only for adaptive level compression, which is told about the backlog of blocks
+    private final ZstdAdaptiveCompressor.LevelController adaptive;
+
+    /**
+     * @param compressor        stream compressor, used as first worker compressor and as template for the others
+     * @param threads           number of worker threads
+     * @param blockSize         max uncompressed block size
+     * @param maxCompressedSize max compressed size of a block (compress bound)
+     */
+    ParallelBlockCompressor(Compressor compressor, int threads, int blockSize, int maxCompressedSize) throws IOException {
+        this.blockSize = blockSize;
+        this.maxCompressedSize = maxCompressedSize;
+        this.maxInFlight = threads * 2;
+
+        if (compressor instanceof ZstdAdaptiveCompressor) {
+            adaptive = ((ZstdAdaptiveCompressor) compressor).getController();
+            adaptive.setParallelism(threads);
+        } else {
+            adaptive = null;
+        }
+
+        idleCompressors = new ArrayBlockingQueue<Compressor>(threads);
+        idleCompressors.add(compressor);
+        for (int i = 1; i < threads; ++i) {
+            Compressor c = newCompressor(compressor, blockSize);
+            setChecksumEnabled(c);
+            createdCompressors.add(c);
+            idleCompressors.add(c);
+        }
+
+        final String namePrefix = "4mc-compressor-" + POOL_ID.incrementAndGet() + "-";
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadId = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, namePrefix + threadId.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private static Compressor newCompressor(Compressor template, int blockSize) throws IOException {
+        Class<? extends Compressor> type = template.getClass();
+        Compressor c;
+        try {
+            c = type.getConstructor(int.class).newInstance(blockSize);
+        } catch (Exception e) {
+            throw new IOException("Cannot create compressor of type " + type.getName(), e);
+        }
+        if (template instanceof ZstdCompressor) {
+            ((ZstdCompressor) c).copySettingsFrom((ZstdCompressor) template);
+        }
+        return c;
+    }
+
+    private static void setChecksumEnabled(Compressor c) {
+        if (c instanceof Lz4Compressor) {
+            ((Lz4Compressor) c).setChecksumEnabled(true);
+        } else if (c instanceof ZstdCompressor) {
+            ((ZstdCompressor) c).setChecksumEnabled(true);
+        }
+    }
+
+    /**
+     * Checksum computed by native code along with last compression.
+     */
+    private static int getChecksum(Compressor c) {
+        return c instanceof Lz4Compressor ? ((Lz4Compressor) c).getChecksum() : ((ZstdCompressor) c).getChecksum();
+    }
+
+    /**
+     * Sets the probe checked before compressing each block, null to always compress.
+     */
+    void setProbe(IncompressibilityProbe probe) {
+        this.probe = probe;
+    }
+
+    /**
+     * Returns an empty block to be filled, recycling already written ones.
+     */
+    Block nextBlock() {
+        Block block = freeBlocks.poll();
+        if (block == null) {
+            block = new Block(blockSize, maxCompressedSize);
+        }
+        block.length = 0;
+        return block;
+    }
+
+    /**
+     * Gives back a block once its payload has been written.
+     */
+    void recycle(Block block) {
+        freeBlocks.add(block);
+    }
+
+    /**
+     * Schedules compression of the given block.
+     */
+    void submit(final Block block) {
+        inFlight.add(executor.submit(new Callable<Block>() {
+            public Block call() throws Exception {
+                Compressor c = idleCompressors.take();
+                try {
+                    compress(c, block, probe);
+                } finally {
+                    idleCompressors.add(c);
+                }
+                return block;
+            }
+        }));
+        if (adaptive != null) {
+            adaptive.setBacklog(inFlight.size(), maxInFlight);
+        }
+    }
+
+    /**
+     * Returns true if the writer must wait for the oldest block before submitting more.
+     */
+    boolean isFull() {
+        return inFlight.size() >= maxInFlight;
+    }
+
+    /**
+     * Returns true if the oldest block is already compressed and can be written without waiting.
+     */
+    boolean hasCompletedBlock() {
+        Future<Block> head = inFlight.peek();
+        return head != null && head.isDone();
+    }
+
+    boolean isEmpty() {
+        return inFlight.isEmpty();
+    }
+
+    /**
+     * Waits for the oldest submitted block to be compressed and returns it.
+     */
+    Block take() throws IOException {
+        Future<Block> head = inFlight.poll();
+        try {
+            return head.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for block compression");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Block compression failed", cause);
+        }
+    }
+
+    /**
+     * Stops worker threads and releases the direct buffers of the compressors created here.
+     */
+    void close() {
+        for (Future<Block> f : inFlight) {
+            f.cancel(true);
+        }
+        inFlight.clear();
+        executor.shutdownNow();
+        if (!awaitWorkers()) {
+            // a worker may still be using its compressor: leave buffers to the compressor finalizer
+            createdCompressors.clear();
+            freeBlocks.clear();
+            return;
+        }
+        for (Compressor c : createdCompressors) {
+            if (c instanceof Lz4Compressor) {
+                ((Lz4Compressor) c).releaseDirectBuffers();
+            } else if (c instanceof ZstdCompressor) {
+                ((ZstdCompressor) c).releaseDirectBuffers();
+            }
+        }
+        createdCompressors.clear();
+        freeBlocks.clear();
+        if (adaptive != null) {
+            // stream compressor may be reused by a serial writer
+            adaptive.setParallelism(1);
+            adaptive.setBacklog(0, 0);
+        }
+    }
+
+    /**
+     * Waits a bounded time for interrupted workers to stop, returning true once none is running.
+     */
+    private boolean awaitWorkers() {
+        try {
+            return executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Same logic of the serial path: if compression cannot reduce block size, data is stored as plain.
+     */
+    private static void compress(Compressor c, Block block, IncompressibilityProbe probe) throws IOException {
+        int len = 0;
+        if (probe == null || !probe.isIncompressible(block.data, BLOCK_HEADER_SIZE, block.length)) {
+            c.reset();
+            c.setInput(block.data, BLOCK_HEADER_SIZE, block.length);
+            c.finish();
+            int capacity = block.compressed.length - BLOCK_HEADER_SIZE;
+            while (!c.finished() && len < capacity) {
+                len += c.compress(block.compressed, BLOCK_HEADER_SIZE + len, capacity - len);
+            }
+        }
+
+        int checksum;
+        if (len <= 0 || len >= block.length) {
+            block.frame = block.data;
+            checksum = len > 0 ? getChecksum(c) : Lz4Compressor.xxhash32(block.data, BLOCK_HEADER_SIZE, block.length, 0);
+            len = block.length;
+        } else {
+            block.frame = block.compressed;
+            checksum = getChecksum(c);
+        }
+        block.frameLength = BLOCK_HEADER_SIZE + len;
+        writeBlockHeader(block.frame, block.length, len, checksum);
+    }
+
+    /**
+     * Fills the first BLOCK_HEADER_SIZE bytes of the frame with block header, big endian.
+     */
+    static void writeBlockHeader(byte[] frame, int uncompressedSize, int compressedSize, int checksum) {
+        putInt(frame, 0, uncompressedSize);
+        putInt(frame, 4, compressedSize);
+        putInt(frame, 8, checksum);
+    }
+
+    private static void putInt(byte[] buf, int offset, int v) {
+        buf[offset] = (byte) (v >>> 24);
+        buf[offset + 1] = (byte) (v >>> 16);
+        buf[offset + 2] = (byte) (v >>> 8);
+        buf[offset + 3] = (byte) v;
+    }
+}
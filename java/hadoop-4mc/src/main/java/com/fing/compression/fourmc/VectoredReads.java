@@ -0,0 +1,132 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+/**
+ * Vectored reads of an input stream, when Hadoop has them: since Hadoop 3.3.5 FSDataInputStream has readVectored(),
+ * that object store clients serve with parallel and coalesced ranged requests.
+ * The API is looked up by reflection, as Hadoop 1 API has none of it.
+ */
+class VectoredReads {
+
+    // FileRange.createFileRange() and FileRange.getData(), null without vectored reads
+    private static final Method CREATE_RANGE;
+    private static final Method GET_DATA;
+
+    static {
+        Method create = null;
+        Method getData = null;
+        try {
+            Class<?> fileRange = Class.forName("org.apache.hadoop.fs.FileRange");
+            create = fileRange.getMethod("createFileRange", long.class, int.class);
+            getData = fileRange.getMethod("getData");
+        } catch (ClassNotFoundException e) {
+            // no vectored reads
+        } catch (NoSuchMethodException e) {
+            create = null;
+        }
+        CREATE_RANGE = create;
+        GET_DATA = getData;
+    }
+
+    private static final IntFunction<ByteBuffer> ALLOCATE = new IntFunction<ByteBuffer>() {
+        public ByteBuffer apply(int size) {
+            return ByteBuffer.allocate(size);
+        }
+    };
+
+    private final InputStream in;
+    private final Method readVectored;
+
+    private VectoredReads(InputStream in, Method readVectored) {
+        this.in = in;
+        this.readVectored = readVectored;
+    }
+
+    /**
+     * Returns vectored reads for the given stream, or null if it has no readVectored method.
+     */
+    static VectoredReads of(InputStream in) {
+        if (CREATE_RANGE == null) {
+            return null;
+        }
+        try {
+            return new VectoredReads(in, in.getClass().getMethod("readVectored", List.class, IntFunction.class));
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts reads of the given ranges, returning the future data of each of them, in the same order; data is
+     * a heap buffer from position 0 to range length. Returns null if the stream turns out not to support vectored
+     * reads: in such case nothing has been read.
+     */
+    @SuppressWarnings("unchecked")
+    List<Future<ByteBuffer>> read(List<BlockRangeInputStream.Range> ranges) throws IOException {
+        try {
+            List<Object> fileRanges = new ArrayList<Object>(ranges.size());
+            for (BlockRangeInputStream.Range range : ranges) {
+                fileRanges.add(CREATE_RANGE.invoke(null, range.offset, range.length));
+            }
+            readVectored.invoke(in, fileRanges, ALLOCATE);
+            List<Future<ByteBuffer>> data = new ArrayList<Future<ByteBuffer>>(ranges.size());
+            for (Object fileRange : fileRanges) {
+                data.add((Future<ByteBuffer>) GET_DATA.invoke(fileRange));
+            }
+            return data;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnsupportedOperationException) {
+                return null;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Vectored read failed", cause);
+        }
+    }
+}
@@ -43,6 +43,9 @@ import com.fing.compression.fourmc.zstd.ZstdStreamDecompressor;
  * A {@link org.apache.hadoop.io.compress.CompressionCodec} for a streaming
  * <b>Zstd</b> compression/decompression pair.
  * see https://github.com/Cyan4973/zstd for more details about the compression algorithm.
+ * <br>
+ * Compression level is configured as "io.compress.zst.compression.level", while
+ * "io.compress.zst.workers" sets the number of zstd worker threads compressing the stream (default 0, no workers).
  */
 public class ZstCodec implements Configurable, CompressionCodec {
     private static final Log LOG = LogFactory.getLog(ZstCodec.class.getName());
@@ -50,6 +53,9 @@ public class ZstCodec implements Configurable, CompressionCodec {
     // buffer size can be any size, let's make it reasonable and set it to 256k.
     public static final int ZST_BUFFER_SIZE = 256 * 1024;
 
+    // same limit of ZSTDMT_NBWORKERS_MAX on 32 bit platforms
+    public static final int ZST_MAX_WORKERS = 64;
+
     private Configuration conf;
 
     @Override
@@ -115,11 +121,29 @@ public class ZstCodec implements Configurable, CompressionCodec {
             throw new RuntimeException("native hadoop-4mc library not available");
         }
 
+        return new ZstdStreamCompressor(getCompressionLevel(conf), getWorkers(conf));
+    }
+
+    /**
+     * Compression level of the given configuration, also used by compressors reinitialized by CodecPool.
+     */
+    public static int getCompressionLevel(Configuration conf) {
         int compressionLevel = conf.getInt("io.compress.zst.compression.level", 1);
         if (compressionLevel <= 0 || compressionLevel >= 23) {
             compressionLevel = 3;
         }
-        return new ZstdStreamCompressor(compressionLevel);
+        return compressionLevel;
+    }
+
+    /**
+     * Number of zstd workers of the given configuration, also used by compressors reinitialized by CodecPool.
+     */
+    public static int getWorkers(Configuration conf) {
+        int workers = conf.getInt("io.compress.zst.workers", 0);
+        if (workers < 0 || workers > ZST_MAX_WORKERS) {
+            workers = 0;
+        }
+        return workers;
     }
 
     @Override
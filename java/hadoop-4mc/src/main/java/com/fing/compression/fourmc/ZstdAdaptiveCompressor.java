@@ -0,0 +1,186 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Provides ZSTD compression at a level chosen block by block, tracking a throughput target.
+ * After each block, measured compression speed is compared against the target, together with the
+ * backlog of the writer when compressing in parallel: level goes down when falling behind and up
+ * when there is enough headroom. Decompression is level-agnostic, so nothing is recorded in the format.
+ */
+public class ZstdAdaptiveCompressor extends ZstdCompressor {
+
+    public static final int DEFAULT_TARGET_MBPS = 100;
+    public static final int DEFAULT_MIN_LEVEL = 1;
+    public static final int DEFAULT_MAX_LEVEL = 19;
+
+    private int targetMBps;
+    private int minLevel;
+    private int maxLevel;
+
+    // shared by all the compressors working on the same stream
+    private LevelController controller;
+
+    public ZstdAdaptiveCompressor(int directBufferSize) {
+        this(directBufferSize, DEFAULT_TARGET_MBPS, DEFAULT_MIN_LEVEL, DEFAULT_MAX_LEVEL);
+    }
+
+    public ZstdAdaptiveCompressor(int directBufferSize, int targetMBps, int minLevel, int maxLevel) {
+        super(directBufferSize);
+        this.targetMBps = targetMBps;
+        this.minLevel = minLevel;
+        this.maxLevel = maxLevel;
+        this.controller = new LevelController(targetMBps, minLevel, maxLevel);
+    }
+
+    /**
+     * Besides buffers, takes throughput target and level range from the configuration, if any,
+     * restarting level selection from scratch for the next stream.
+     */
+    @Override
+    public void reinit(Configuration conf) {
+        super.reinit(conf);
+        if (conf != null) {
+            targetMBps = conf.getInt(FourMzAdaptiveCodec.FOURMZ_ADAPTIVE_THROUGHPUT_KEY, DEFAULT_TARGET_MBPS);
+            minLevel = conf.getInt(FourMzAdaptiveCodec.FOURMZ_ADAPTIVE_MIN_LEVEL_KEY, DEFAULT_MIN_LEVEL);
+            maxLevel = conf.getInt(FourMzAdaptiveCodec.FOURMZ_ADAPTIVE_MAX_LEVEL_KEY, DEFAULT_MAX_LEVEL);
+        }
+        controller = new LevelController(targetMBps, minLevel, maxLevel);
+    }
+
+    public int compressBytesDirectSpecific() {
+        int level = controller.getLevel();
+        int len = getUncompressedDirectBufLen();
+        long start = System.nanoTime();
+        int n = compressBytesDirectHC(level);
+        controller.blockCompressed(level, len, System.nanoTime() - start);
+        return n;
+    }
+
+    /**
+     * Level currently used for next blocks.
+     */
+    public int getLevel() {
+        return controller.getLevel();
+    }
+
+    /**
+     * Worker compressors of a parallel stream share the controller of the stream one.
+     */
+    @Override
+    void copySettingsFrom(ZstdCompressor other) {
+        super.copySettingsFrom(other);
+        if (other instanceof ZstdAdaptiveCompressor) {
+            this.controller = ((ZstdAdaptiveCompressor) other).controller;
+        }
+    }
+
+    LevelController getController() {
+        return controller;
+    }
+
+    /**
+     * Picks compression level from speed samples and writer backlog.
+     * Speed is tracked as a moving average of the current level, multiplied by the number of threads
+     * compressing concurrently. A serial writer has no backlog: the caller waits for each block.
+     */
+    static final class LevelController {
+        // level goes up only if estimated speed exceeds target by this factor
+        static final double HEADROOM = 1.3;
+        // fraction of parallel queue above which the writer is falling behind
+        static final double HIGH_BACKLOG = 0.75;
+        static final double LOW_BACKLOG = 0.25;
+        // samples needed at current level before raising it
+        static final int MIN_SAMPLES = 2;
+        static final int START_LEVEL = 3;
+        static final int ZSTD_MAX_LEVEL = 22;
+
+        private final double targetBytesPerNano;
+        private final int minLevel;
+        private final int maxLevel;
+
+        private int level;
+        private int samples;
+        private double bytesPerNano;
+        private int parallelism = 1;
+        private double backlog;
+
+        LevelController(int targetMBps, int minLevel, int maxLevel) {
+            this.targetBytesPerNano = Math.max(1, targetMBps) * 1024.0 * 1024.0 / 1e9;
+            this.minLevel = Math.max(1, minLevel);
+            this.maxLevel = Math.max(this.minLevel, Math.min(ZSTD_MAX_LEVEL, maxLevel));
+            this.level = Math.max(this.minLevel, Math.min(this.maxLevel, START_LEVEL));
+        }
+
+        synchronized int getLevel() {
+            return level;
+        }
+
+        synchronized void setParallelism(int threads) {
+            parallelism = Math.max(1, threads);
+        }
+
+        /**
+         * Reports blocks waiting to be written out of the max allowed in flight.
+         */
+        synchronized void setBacklog(int pending, int capacity) {
+            backlog = capacity > 0 ? (double) pending / capacity : 0;
+        }
+
+        synchronized void blockCompressed(int blockLevel, long bytes, long nanos) {
+            if (blockLevel != level || bytes <= 0) {
+                // sample of a level already left behind (parallel compression)
+                return;
+            }
+            double sample = (double) bytes / Math.max(1, nanos);
+            bytesPerNano = samples == 0 ? sample : 0.7 * bytesPerNano + 0.3 * sample;
+            ++samples;
+
+            double speed = bytesPerNano * parallelism;
+            if ((speed < targetBytesPerNano || backlog >= HIGH_BACKLOG) && level > minLevel) {
+                changeLevel(level - 1);
+            } else if (speed > targetBytesPerNano * HEADROOM && backlog <= LOW_BACKLOG
+                    && samples >= MIN_SAMPLES && level < maxLevel) {
+                changeLevel(level + 1);
+            }
+        }
+
+        private void changeLevel(int newLevel) {
+            level = newLevel;
+            samples = 0;
+        }
+    }
+}
@@ -56,7 +56,7 @@ import java.io.OutputStream;
  * A {@link CompressionCodec} for a streaming
  * <b>ZSTD</b> compression/decompression pair.
  */
-public class ZstdCodec implements Configurable, CompressionCodec {
+public class ZstdCodec implements Configurable, DirectDecompressionCodec {
     private static final Log LOG = LogFactory.getLog(ZstdCodec.class.getName());
 
     public static final int ZSTD_BUFFER_SIZE = 4 * 1024 * 1024;
@@ -162,6 +162,11 @@ public class ZstdCodec implements Configurable, CompressionCodec {
         return new ZstdDecompressor(ZSTD_BUFFER_SIZE);
     }
 
+
+    public DirectDecompressor createDirectDecompressor() {
+        return (DirectDecompressor) createDecompressor();
+    }
+
     /**
      * Get the default filename extension for this kind of compression.
      *
@@ -50,6 +50,8 @@ import org.apache.hadoop.io.compress.Compressor;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * ZSTD Compressor (FAST, level=1).
@@ -65,9 +67,31 @@ public class ZstdCompressor implements Compressor {
     private ByteBuffer compressedDirectBuf = null;
     private boolean finish, finished;
 
+    // advanced parameters (read by native code): 0/false means zstd defaults for the level
+    private int windowLog = 0;
+    private boolean longDistanceMatching = false;
+
+    // trained dictionary, digested by native code into a ZSTD_CDict for cdictLevel on first use
+    private byte[] dictionary = null;
+    private long cdict = 0L;
+    private int cdictLevel = 0;
+    // last dictionary set, which cdict is digested from: kept when cleared, so that setting it again reuses cdict
+    private byte[] digestedDictionary = null;
+
+    // compression context reused across blocks, created by native code on first use
+    private long cctx = 0L;
+
+    // block checksum computed by native code along with compression, when enabled (read/written by native code)
+    private boolean checksumEnabled = false;
+    private int checksum = 0;
+
     private long bytesRead = 0L;
     private long bytesWritten = 0L;
 
+    public static final int ZSTD_WINDOWLOG_MIN = 10;
+    // kept within default decoder limit (ZSTD_WINDOWLOG_LIMIT_DEFAULT), beyond that readers would refuse frames
+    public static final int ZSTD_WINDOWLOG_MAX = 27;
+
     private static boolean nativeLoaded;
 
     static {
@@ -75,7 +99,13 @@ public class ZstdCompressor implements Compressor {
             // Initialize the native library
             try {
                 initIDs();
+                // a library built from older sources lacks natives this class relies on, e.g. for block checksums computed along with compression:
+                // calling one of them makes such a library count as not loaded, rather than failing later on
+                freeCCtx(0);
                 nativeLoaded = true;
+            } catch (UnsatisfiedLinkError e) {
+                LOG.error("Outdated hadoop-4mc native library, it must be rebuilt from sources: " + e);
+                nativeLoaded = false;
             } catch (Throwable t) {
                 LOG.warn(t.toString());
                 nativeLoaded = false;
@@ -96,11 +126,23 @@ public class ZstdCompressor implements Compressor {
     }
 
     /**
-     * Reinitialize from a configuration, possibly changing compression codec
+     * Reinitialize from a configuration, as done by CodecPool when handing out a pooled compressor.
+     * Direct buffers and native context are kept, buffers growing only if 4mz block size of the configuration
+     * needs more room: streams use blocks up to buffer size, so a bigger buffer serves any smaller block size.
+     * Advanced parameters and dictionary go back to defaults, codecs apply their own when creating a stream.
+     * Compression level is given by compressor type, which is what CodecPool pools by.
      */
     //@Override (this method isn't in vanilla 0.20.2, but is in CDH3b3 and YDH)
     public void reinit(Configuration conf) {
-        init(this.directBufferSize);
+        int size = this.directBufferSize;
+        if (conf != null) {
+            size = Math.max(size, FourMzCodec.getCompressionBlockSize(conf));
+        }
+        setWindowLog(0);
+        setLongDistanceMatching(false);
+        clearDictionary();
+        checksumEnabled = false;
+        init(size);
     }
 
 
@@ -140,6 +182,22 @@ public class ZstdCompressor implements Compressor {
             DirectBufferPool.getInstance().release(uncompressedDirectBuf);
             uncompressedDirectBuf=null;
         }
+        releaseNativeContext();
+    }
+
+    private synchronized void releaseNativeContext() {
+        if (cctx != 0L) {
+            freeCCtx(cctx);
+            cctx = 0L;
+        }
+        releaseDigestedDictionary();
+    }
+
+    private synchronized void releaseDigestedDictionary() {
+        if (cdict != 0L) {
+            freeCDict(cdict);
+            cdict = 0L;
+        }
     }
 
     private void init(int directBufferSize) {
@@ -194,8 +252,84 @@ public class ZstdCompressor implements Compressor {
         userBufLen -= uncompressedDirectBufLen;
     }
 
+    /**
+     * Sets a trained zstd dictionary (see {@link #trainDictionary}) used for all following blocks.
+     * Data is copied, the same dictionary must be given to the decompressor. Setting again the dictionary
+     * last set, even after clearing it (e.g. by reinit()), keeps the one already digested by native code.
+     */
     public synchronized void setDictionary(byte[] b, int off, int len) {
-        // nop
+        if (b == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len <= 0 || off > b.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        byte[] dict = Arrays.copyOfRange(b, off, off + len);
+        if (Arrays.equals(dict, digestedDictionary)) {
+            dictionary = digestedDictionary;
+            return;
+        }
+        releaseDigestedDictionary();
+        dictionary = dict;
+        digestedDictionary = dict;
+    }
+
+    /**
+     * Goes back to compression without dictionary; digested dictionary is kept until another one is set.
+     */
+    public synchronized void clearDictionary() {
+        dictionary = null;
+    }
+
+    /**
+     * Returns the dictionary in use, null if none. The returned array must not be modified.
+     */
+    public synchronized byte[] getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Trains a zstd dictionary from samples of the data to be compressed, typically records or
+     * small files: the more samples (hundreds at least), the better the dictionary.
+     *
+     * @param samples     sample records, all concatenated
+     * @param sampleSizes size of each sample within samples
+     * @param maxDictSize max size of the dictionary, about 100KB is usually a good choice
+     * @return trained dictionary
+     */
+    public static byte[] trainDictionary(byte[] samples, int[] sampleSizes, int maxDictSize) {
+        long total = 0L;
+        for (int size : sampleSizes) {
+            if (size < 0) {
+                throw new IllegalArgumentException("Negative sample size: " + size);
+            }
+            total += size;
+        }
+        if (total > samples.length) {
+            throw new IllegalArgumentException("Sample sizes exceed samples length: " + total + " > " + samples.length);
+        }
+        byte[] dict = new byte[maxDictSize];
+        int size = trainDictionary(dict, samples, sampleSizes);
+        return Arrays.copyOf(dict, size);
+    }
+
+    /**
+     * Trains a zstd dictionary from a list of samples, see {@link #trainDictionary(byte[], int[], int)}.
+     */
+    public static byte[] trainDictionary(List<byte[]> samples, int maxDictSize) {
+        int total = 0;
+        int[] sizes = new int[samples.size()];
+        for (int i = 0; i < sizes.length; ++i) {
+            sizes[i] = samples.get(i).length;
+            total += sizes[i];
+        }
+        byte[] buf = new byte[total];
+        int pos = 0;
+        for (byte[] sample : samples) {
+            System.arraycopy(sample, 0, buf, pos, sample.length);
+            pos += sample.length;
+        }
+        return trainDictionary(buf, sizes, maxDictSize);
     }
 
     /**
@@ -307,23 +441,148 @@ public class ZstdCompressor implements Compressor {
     }
 
     /**
-     * Used only by tests.
+     * Same as uncompressedBytes(), copying data into the given array instead of allocating a new one.
+     * Works both before and after compression. Returns the number of bytes copied.
+     */
+    public int uncompressedBytes(byte[] b, int off) {
+        int len = (int) bytesRead;
+        uncompressedDirectBuf.position(0);
+        ((ByteBuffer) uncompressedDirectBuf).get(b, off, len);
+        return len;
+    }
+
+    /**
+     * Buffer holding data given to this compressor, from index 0 up to getBytesRead().
+     */
+    ByteBuffer getUncompressedDirectBuf() {
+        return uncompressedDirectBuf;
+    }
+
+    /**
+     * Buffers up to maxLen bytes of the given buffer, as far as direct buffer has room,
+     * copying them straight from caller memory. Returns the number of bytes taken.
+     */
+    public synchronized int setInput(ByteBuffer src, int maxLen) {
+        int n = Math.min(Math.min(src.remaining(), maxLen), uncompressedDirectBuf.remaining());
+        finished = false;
+
+        int limit = src.limit();
+        src.limit(src.position() + n);
+        uncompressedDirectBuf.put(src);
+        src.limit(limit);
+        uncompressedDirectBufLen = uncompressedDirectBuf.position();
+        bytesRead += n;
+        return n;
+    }
+
+    /**
+     * Compresses len bytes of the given direct buffer, from its position, with no copy of input data:
+     * native code reads caller memory directly. Compressed data is copied to dst at dstOff, returning its size.
+     * Source position is not changed, and nothing must be pending in this compressor (as after reset()).
+     */
+    public synchronized int compressDirect(ByteBuffer src, int len, byte[] dst, int dstOff) {
+        if (!src.isDirect() || len > src.remaining() || len > directBufferSize) {
+            throw new IllegalArgumentException("Direct buffer with up to " + directBufferSize + " bytes expected");
+        }
+        ByteBuffer saved = uncompressedDirectBuf;
+        uncompressedDirectBuf = src.slice();
+        uncompressedDirectBufLen = len;
+        compressedDirectBuf.clear();
+        int n;
+        try {
+            n = compressBytesDirectSpecific();
+        } finally {
+            uncompressedDirectBuf = saved;
+            uncompressedDirectBufLen = 0;
+        }
+        compressedDirectBuf.limit(n);
+        compressedDirectBuf.get(dst, dstOff, n);
+        return n;
+    }
+
+    /**
+     * When enabled, native compression also hashes the payload 4mc stores for the block, in the same call:
+     * compressed data if smaller than input, input otherwise. Disabled by reinit().
+     */
+    public synchronized void setChecksumEnabled(boolean checksumEnabled) {
+        this.checksumEnabled = checksumEnabled;
+    }
+
+    /**
+     * XXH32 of the payload of the last block compressed with checksum enabled.
+     */
+    public synchronized int getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Size of direct buffers, that is the max uncompressed block size handled in one go.
      */
     long getDirectBufferSize() {
         return directBufferSize;
     }
 
     /**
-     * Noop.
+     * Sets zstd window log (base 2 of max back-reference distance), 0 means level default.
+     * Useful with blocks bigger than the default window of the level, see 4mz format v2.
+     */
+    public synchronized void setWindowLog(int windowLog) {
+        if (windowLog != 0 && (windowLog < ZSTD_WINDOWLOG_MIN || windowLog > ZSTD_WINDOWLOG_MAX)) {
+            throw new IllegalArgumentException("Invalid zstd window log: " + windowLog);
+        }
+        this.windowLog = windowLog;
+    }
+
+    public int getWindowLog() {
+        return windowLog;
+    }
+
+    /**
+     * Enables zstd long distance matching, finding far repetitions in big blocks.
+     */
+    public synchronized void setLongDistanceMatching(boolean longDistanceMatching) {
+        this.longDistanceMatching = longDistanceMatching;
+    }
+
+    public boolean isLongDistanceMatching() {
+        return longDistanceMatching;
+    }
+
+    /**
+     * Copies advanced parameters, so that compressors of the same stream produce the same output.
+     */
+    void copySettingsFrom(ZstdCompressor other) {
+        setWindowLog(other.windowLog);
+        setLongDistanceMatching(other.longDistanceMatching);
+        byte[] dict = other.getDictionary();
+        if (dict != null) {
+            setDictionary(dict, 0, dict.length);
+        } else {
+            clearDictionary();
+        }
+    }
+
+    /**
+     * Size of data about to be compressed by native code.
+     */
+    int getUncompressedDirectBufLen() {
+        return uncompressedDirectBufLen;
+    }
+
+    /**
+     * Releases native context and dictionary, created again if compressor is used afterwards.
      */
     public synchronized void end() {
-        // nop
+        releaseNativeContext();
     }
 
     private native static void initIDs();
 
     public native static int xxhash32(byte[] input, int offset, int len, int seed);
     public native static int compressBound(int origSize);
+    private native static void freeCCtx(long cctx);
+    private native static void freeCDict(long cdict);
+    private native static int trainDictionary(byte[] dict, byte[] samples, int[] sampleSizes);
 
     protected native int compressBytesDirect();
     protected native int compressBytesDirectMC();
@@ -41,11 +41,12 @@ import org.apache.hadoop.io.compress.Decompressor;
 import java.io.IOException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * ZSTD Decompressor, tuned for 4mc purposes.
  */
-public class ZstdDecompressor implements Decompressor {
+public class ZstdDecompressor implements Decompressor, DirectDecompressor {
 
     private static final Log LOG = LogFactory.getLog(ZstdDecompressor.class.getName());
 
@@ -59,6 +60,17 @@ public class ZstdDecompressor implements Decompressor {
 
     private boolean isCurrentBlockUncompressed;
 
+    // checksum of the compressed block, verified by native code right before decompressing it
+    private boolean checksumPending;
+    private int expectedChecksum;
+
+    // dictionary the file was compressed with, digested by native code into a ZSTD_DDict on first use
+    private byte[] dictionary = null;
+    private long ddict = 0L;
+
+    // decompression context reused across blocks, created by native code on first use
+    private long dctx = 0L;
+
     private static boolean nativeLoaded;
 
     static {
@@ -66,7 +78,13 @@ public class ZstdDecompressor implements Decompressor {
             // Initialize the native library
             try {
                 initIDs();
+                // a library built from older sources lacks natives this class relies on, e.g. for block checksums verified along with decompression:
+                // calling one of them makes such a library count as not loaded, rather than failing later on
+                freeDCtx(0);
                 nativeLoaded = true;
+            } catch (UnsatisfiedLinkError e) {
+                LOG.error("Outdated hadoop-4mc native library, it must be rebuilt from sources: " + e);
+                nativeLoaded = false;
             } catch (Throwable t) {
                 LOG.warn(t.toString());
                 nativeLoaded = false;
@@ -146,8 +164,37 @@ public class ZstdDecompressor implements Decompressor {
         }
     }
 
+    /**
+     * Sets the zstd dictionary following blocks were compressed with. Data is copied.
+     */
     public synchronized void setDictionary(byte[] b, int off, int len) {
-        // nop
+        if (b == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len <= 0 || off > b.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        releaseDigestedDictionary();
+        dictionary = Arrays.copyOfRange(b, off, off + len);
+    }
+
+    /**
+     * Goes back to decompression without dictionary, as needed when reused for another file.
+     */
+    public synchronized void clearDictionary() {
+        releaseDigestedDictionary();
+        dictionary = null;
+    }
+
+    public synchronized byte[] getDictionary() {
+        return dictionary;
+    }
+
+    private synchronized void releaseDigestedDictionary() {
+        if (ddict != 0L) {
+            freeDDict(ddict);
+            ddict = 0L;
+        }
     }
 
     public synchronized boolean needsInput() {
@@ -226,6 +273,107 @@ public class ZstdDecompressor implements Decompressor {
         return numBytes;
     }
 
+    /**
+     * Same as decompress(byte[], int, int), writing into the given buffer.
+     * When dst is direct and has room for the whole block (blockLen bytes), native code
+     * decompresses straight into caller memory, skipping the internal direct buffer.
+     */
+    public synchronized int decompress(ByteBuffer dst, int blockLen) throws IOException {
+        int numBytes = 0;
+        if (isCurrentBlockUncompressed()) {
+            numBytes = Math.min(userBufLen, dst.remaining());
+            dst.put(userBuf, userBufOff, numBytes);
+            userBufOff += numBytes;
+            userBufLen -= numBytes;
+        } else {
+            ByteBuffer uncompressed = (ByteBuffer) uncompressedDirectBuf;
+            numBytes = uncompressed.remaining();
+            if (numBytes > 0) {
+                return copyUncompressed(dst);
+            }
+
+            if (compressedDirectBufLen > 0) {
+                if (dst.isDirect() && blockLen > 0 && dst.remaining() >= blockLen) {
+                    int savedSize = directBufferSize;
+                    uncompressedDirectBuf = dst.slice();
+                    directBufferSize = blockLen;
+                    try {
+                        numBytes = decompressBytesDirect();
+                    } finally {
+                        uncompressedDirectBuf = uncompressed;
+                        directBufferSize = savedSize;
+                    }
+                    dst.position(dst.position() + numBytes);
+                } else {
+                    uncompressed.rewind();
+                    uncompressed.limit(directBufferSize);
+                    uncompressed.limit(decompressBytesDirect());
+                    numBytes = copyUncompressed(dst);
+                }
+            }
+        }
+
+        if (userBufLen <= 0) {
+            finished = true;
+        }
+
+        return numBytes;
+    }
+
+    /**
+     * Decompresses a whole zstd block between direct buffers, native code working on caller memory.
+     * Must not be called while a block given through setInput() is pending.
+     */
+    public synchronized void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+        if (!src.isDirect() || !dst.isDirect()) {
+            throw new IllegalArgumentException("Direct buffers expected");
+        }
+        Buffer compressed = compressedDirectBuf;
+        Buffer uncompressed = uncompressedDirectBuf;
+        int savedLen = compressedDirectBufLen;
+        int savedSize = directBufferSize;
+        compressedDirectBuf = src.slice();
+        compressedDirectBufLen = src.remaining();
+        uncompressedDirectBuf = dst.slice();
+        directBufferSize = dst.remaining();
+        try {
+            int numBytes = decompressBytesDirect();
+            src.position(src.limit());
+            dst.position(dst.position() + numBytes);
+        } finally {
+            compressedDirectBuf = compressed;
+            uncompressedDirectBuf = uncompressed;
+            compressedDirectBufLen = savedLen;
+            directBufferSize = savedSize;
+        }
+    }
+
+    private int copyUncompressed(ByteBuffer dst) {
+        ByteBuffer uncompressed = (ByteBuffer) uncompressedDirectBuf;
+        int numBytes = Math.min(uncompressed.remaining(), dst.remaining());
+        int limit = uncompressed.limit();
+        uncompressed.limit(uncompressed.position() + numBytes);
+        dst.put(uncompressed);
+        uncompressed.limit(limit);
+        return numBytes;
+    }
+
+    /**
+     * Makes sure direct buffers can hold a whole block of the given size, growing them if needed.
+     * Must be called at block boundaries, when there is no pending data.
+     */
+    public synchronized void ensureBlockCapacity(int blockSize) {
+        if (blockSize <= directBufferSize) {
+            return;
+        }
+        releaseBuffers();
+        directBufferSize = blockSize;
+        compressedDirectBuf = DirectBufferPool.getInstance().allocate(directBufferSize);
+        uncompressedDirectBuf = DirectBufferPool.getInstance().allocate(directBufferSize);
+        compressedDirectBufLen = 0;
+        uncompressedDirectBuf.position(directBufferSize);
+    }
+
     public synchronized int getRemaining() {
         return userBufLen;
     }
@@ -233,6 +381,7 @@ public class ZstdDecompressor implements Decompressor {
 
     public synchronized void reset() {
         finished = false;
+        checksumPending = false;
         compressedDirectBufLen = 0;
         if (uncompressedDirectBuf == null) {
             uncompressedDirectBuf = DirectBufferPool.getInstance().allocate(directBufferSize);
@@ -242,8 +391,19 @@ public class ZstdDecompressor implements Decompressor {
         userBufOff = userBufLen = 0;
     }
 
+    /**
+     * Releases native context and dictionary, created again if decompressor is used afterwards.
+     */
     public synchronized void end() {
-        // nop
+        releaseNativeContext();
+    }
+
+    private synchronized void releaseNativeContext() {
+        if (dctx != 0L) {
+            freeDCtx(dctx);
+            dctx = 0L;
+        }
+        releaseDigestedDictionary();
     }
 
     @Override
@@ -258,6 +418,11 @@ public class ZstdDecompressor implements Decompressor {
 
     // trying to get rid of java.lang.OufOfMemoryError: Direct Buffer Memory
     public void releaseDirectBuffers() {
+        releaseBuffers();
+        releaseNativeContext();
+    }
+
+    private void releaseBuffers() {
         if (compressedDirectBuf != null) {
             DirectBufferPool.getInstance().release((ByteBuffer) compressedDirectBuf);
             compressedDirectBuf=null;
@@ -268,6 +433,16 @@ public class ZstdDecompressor implements Decompressor {
         }
     }
 
+    /**
+     * Gives the XXH32 checksum of the compressed block about to be decompressed: native code verifies it
+     * on the same memory in the decompression call, throwing an IOException on mismatch.
+     * Applies to the next native decompression only.
+     */
+    public synchronized void setBlockChecksum(int checksum) {
+        checksumPending = true;
+        expectedChecksum = checksum;
+    }
+
     /**
      * Note whether the current block being decompressed is actually
      * stored as uncompressed data.  If it is, there is no need to
@@ -292,6 +467,13 @@ public class ZstdDecompressor implements Decompressor {
 
     private native static void initIDs();
     private native int decompressBytesDirect();
+    private native static void freeDCtx(long dctx);
+    private native static void freeDDict(long ddict);
 
     public native static int xxhash32(byte[] input, int offset, int len, int seed);
+
+    /**
+     * Same as xxhash32(byte[], int, int, int), over a direct buffer: offset is relative to buffer start, not position.
+     */
+    public native static int xxhash32Direct(ByteBuffer input, int offset, int len, int seed);
 }
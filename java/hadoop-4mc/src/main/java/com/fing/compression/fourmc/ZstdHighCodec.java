@@ -48,7 +48,7 @@ import java.io.OutputStream;
  * <b>LZ4</b> compression/decompression pair.
  * https://code.google.com/p/lz4/
  */
-public class ZstdHighCodec implements Configurable, CompressionCodec {
+public class ZstdHighCodec implements Configurable, DirectDecompressionCodec {
     private static final Log LOG = LogFactory.getLog(ZstdHighCodec.class.getName());
 
     public static final int ZSTD_BUFFER_SIZE = 4 * 1024 * 1024;
@@ -156,6 +156,11 @@ public class ZstdHighCodec implements Configurable, CompressionCodec {
         return new ZstdDecompressor(ZSTD_BUFFER_SIZE);
     }
 
+
+    public DirectDecompressor createDirectDecompressor() {
+        return (DirectDecompressor) createDecompressor();
+    }
+
     /**
      * Get the default filename extension for this kind of compression.
      *
@@ -47,7 +47,7 @@ import java.io.OutputStream;
  * A {@link CompressionCodec} for a streaming
  * <b>ZSTD</b> compression/decompression pair.
  */
-public class ZstdMediumCodec implements Configurable, CompressionCodec {
+public class ZstdMediumCodec implements Configurable, DirectDecompressionCodec {
     private static final Log LOG = LogFactory.getLog(ZstdMediumCodec.class.getName());
 
     public static final int ZSTD_BUFFER_SIZE = 4 * 1024 * 1024;
@@ -155,6 +155,11 @@ public class ZstdMediumCodec implements Configurable, CompressionCodec {
         return new ZstdDecompressor(ZSTD_BUFFER_SIZE);
     }
 
+
+    public DirectDecompressor createDirectDecompressor() {
+        return (DirectDecompressor) createDecompressor();
+    }
+
     /**
      * Get the default filename extension for this kind of compression.
      *
@@ -47,7 +47,7 @@ import java.io.OutputStream;
  * A {@link CompressionCodec} for a streaming
  * <b>STD</b> compression/decompression pair.
  */
-public class ZstdUltraCodec implements Configurable, CompressionCodec {
+public class ZstdUltraCodec implements Configurable, DirectDecompressionCodec {
     private static final Log LOG = LogFactory.getLog(ZstdUltraCodec.class.getName());
 
     public static final int LZ4_BUFFER_SIZE = 4 * 1024 * 1024;
@@ -148,6 +148,11 @@ public class ZstdUltraCodec implements Configurable, CompressionCodec {
         return new ZstdDecompressor(LZ4_BUFFER_SIZE);
     }
 
+
+    public DirectDecompressor createDirectDecompressor() {
+        return (DirectDecompressor) createDecompressor();
+    }
+
     /**
      * Get the default filename extension for this kind of compression.
      *
@@ -0,0 +1,371 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+package com.fing.compression.fourmc.util;
+
+import org.apache.hadoop.fs.FileStatus;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JVM-wide cache of decompressed 4mc/4mz blocks, shared by all readers, so that hot blocks read again
+ * skip both I/O and decompression. Blocks are kept off-heap, evicted least recently used first once
+ * cached bytes exceed the capacity. Capacity is 0 by default, meaning the cache is disabled.
+ * <p/>
+ * Block buffers are allocated in multiples of 64KB, and reused once a block is evicted and no reader holds it
+ * anymore: readers release the blocks they get from the cache when done with them. Buffers waiting for reuse
+ * are kept only while they fit the capacity along with cached blocks, others are left to the GC:
+ * off-heap memory held by the cache stays within its capacity, besides evicted blocks still being read.
+ * <p/>
+ * A block is identified by its file (path, length and modification time, so a rewritten file never
+ * hits stale blocks) and by its compressed offset in the file, which every reader knows with no index.
+ */
+public class BlockCache {
+    // block buffers are allocated in multiples of this size, for reuse across blocks of slightly different sizes
+    private static final int BUFFER_GRANULARITY = 64 * 1024;
+
+    private static BlockCache instance;
+
+    static {
+        instance = new BlockCache();
+    }
+
+    public static BlockCache getInstance() {
+        return instance;
+    }
+
+    // -------------------------------------------------------------------------------
+
+    /**
+     * Identity of a file: blocks of a file changed since they were cached are never returned.
+     */
+    public static class FileId {
+        private final String path;
+        private final long length;
+        private final long modificationTime;
+
+        public FileId(String path, long length, long modificationTime) {
+            this.path = path;
+            this.length = length;
+            this.modificationTime = modificationTime;
+        }
+
+        public static FileId of(FileStatus status) {
+            return new FileId(status.getPath().toString(), status.getLen(), status.getModificationTime());
+        }
+
+        public static FileId of(File file) {
+            // same path as the one of local file system
+            return new FileId(file.getAbsoluteFile().toURI().toString(), file.length(), file.lastModified());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileId)) {
+                return false;
+            }
+            FileId other = (FileId) o;
+            return path.equals(other.path) && length == other.length && modificationTime == other.modificationTime;
+        }
+
+        @Override
+        public int hashCode() {
+            return (path.hashCode() * 31 + (int) (length ^ (length >>> 32))) * 31 +
+                    (int) (modificationTime ^ (modificationTime >>> 32));
+        }
+    }
+
+    /**
+     * A cached block: uncompressed data, from position 0 up to limit, and size of the block frame
+     * in the file (header included), that is the distance to next block.
+     * Data is valid until the block is given back with {@link BlockCache#release(Block)}.
+     */
+    public static class Block {
+        private final ByteBuffer data;
+        private final int frameLength;
+        // readers holding the block, and whether the cache dropped it: guarded by the cache lock
+        private int refs;
+        private boolean evicted;
+
+        Block(ByteBuffer data, int frameLength) {
+            this.data = data;
+            this.frameLength = frameLength;
+        }
+
+        /**
+         * Read-only view of block data, with its own position.
+         */
+        public ByteBuffer getData() {
+            return data.asReadOnlyBuffer();
+        }
+
+        public int getFrameLength() {
+            return frameLength;
+        }
+    }
+
+    public static class Stats {
+        public long hits = 0;
+        public long misses = 0;
+        public long evictions = 0;
+        public long cachedBlocks = 0;
+        public long cachedBytes = 0;
+        public long idleBytes = 0;
+        public long allocatedBuffers = 0;
+
+        public Stats() {
+        }
+        public Stats(long hits, long misses, long evictions, long cachedBlocks, long cachedBytes,
+                     long idleBytes, long allocatedBuffers) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.cachedBlocks = cachedBlocks;
+            this.cachedBytes = cachedBytes;
+            this.idleBytes = idleBytes;
+            this.allocatedBuffers = allocatedBuffers;
+        }
+    }
+
+    // -------------------------------------------------------------------------------
+
+    private static class Key {
+        private final FileId file;
+        private final long blockOffset;
+
+        Key(FileId file, long blockOffset) {
+            this.file = file;
+            this.blockOffset = blockOffset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return blockOffset == other.blockOffset && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + (int) (blockOffset ^ (blockOffset >>> 32));
+        }
+    }
+
+    // access ordered: iteration starts from least recently used block
+    private final LinkedHashMap<Key, Block> blocks = new LinkedHashMap<Key, Block>(64, 0.75f, true);
+    // buffers of dropped blocks by size, waiting for reuse
+    private final HashMap<Integer, ArrayDeque<ByteBuffer>> idleBuffers = new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+    private long capacity = 0;
+    private long cachedBytes = 0;
+    private long idleBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long allocatedBuffers = 0;
+
+    private BlockCache() {
+    }
+
+    /**
+     * Sets max bytes of cached data, evicting blocks and dropping idle buffers as needed;
+     * 0 disables the cache and empties it.
+     */
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = Math.max(0, capacity);
+        evict(this.capacity);
+        trimIdleBuffers();
+    }
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Returns the cached block at the given compressed offset of the file, null if not cached.
+     * A returned block must be given back with release() once done with it.
+     */
+    public synchronized Block get(FileId file, long blockOffset) {
+        Block block = capacity > 0 ? blocks.get(new Key(file, blockOffset)) : null;
+        if (block == null) {
+            ++misses;
+        } else {
+            ++hits;
+            ++block.refs;
+        }
+        return block;
+    }
+
+    /**
+     * Copies len bytes of uncompressed block data off-heap and caches them, evicting least recently used blocks
+     * to make room. Returns the cached block, to be given back with release() once done with it,
+     * or null when the block does not fit the cache at all.
+     */
+    public Block put(FileId file, long blockOffset, byte[] data, int off, int len, int frameLength) {
+        int size = bufferSize(len);
+        ByteBuffer buf;
+        synchronized (this) {
+            if (size > capacity) {
+                return null;
+            }
+            // room for the block first, so that it can take the buffer of an evicted one
+            evict(capacity - size);
+            buf = takeIdleBuffer(size);
+            if (buf == null) {
+                ++allocatedBuffers;
+            }
+        }
+        // allocation and copy are made out of the lock
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(size);
+        }
+        buf.clear();
+        buf.put(data, off, len);
+        buf.flip();
+        Block block = new Block(buf, frameLength);
+
+        synchronized (this) {
+            if (size > capacity) {
+                recycle(buf);
+                return null;
+            }
+            block.refs = 1;
+            Block previous = blocks.put(new Key(file, blockOffset), block);
+            if (previous != null) {
+                cachedBytes -= previous.data.capacity();
+                drop(previous);
+            }
+            cachedBytes += size;
+            evict(capacity);
+            trimIdleBuffers();
+            return block;
+        }
+    }
+
+    /**
+     * Gives back a block got from get() or put(): its buffer is reused once the block
+     * has been evicted and no other reader holds it.
+     */
+    public synchronized void release(Block block) {
+        if (--block.refs == 0 && block.evicted) {
+            recycle(block.data);
+        }
+    }
+
+    /**
+     * Drops all cached blocks, keeping capacity and stats.
+     */
+    public synchronized void clear() {
+        for (Block block : blocks.values()) {
+            cachedBytes -= block.data.capacity();
+            drop(block);
+        }
+        blocks.clear();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, evictions, blocks.size(), cachedBytes, idleBytes, allocatedBuffers);
+    }
+
+    // evicts least recently used blocks until cached bytes are within the given limit
+    private void evict(long limit) {
+        Iterator<Map.Entry<Key, Block>> it = blocks.entrySet().iterator();
+        while (cachedBytes > limit && it.hasNext()) {
+            Block block = it.next().getValue();
+            cachedBytes -= block.data.capacity();
+            it.remove();
+            drop(block);
+            ++evictions;
+        }
+    }
+
+    // buffer of a block no longer cached is reused at once, or when last reader holding it releases it
+    private void drop(Block block) {
+        block.evicted = true;
+        if (block.refs == 0) {
+            recycle(block.data);
+        }
+    }
+
+    // keeps a buffer for reuse if it fits the capacity along with cached blocks, otherwise leaves it to the GC
+    private void recycle(ByteBuffer buf) {
+        if (cachedBytes + idleBytes + buf.capacity() > capacity) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> buffers = idleBuffers.get(buf.capacity());
+        if (buffers == null) {
+            buffers = new ArrayDeque<ByteBuffer>();
+            idleBuffers.put(buf.capacity(), buffers);
+        }
+        buffers.add(buf);
+        idleBytes += buf.capacity();
+    }
+
+    private ByteBuffer takeIdleBuffer(int size) {
+        ArrayDeque<ByteBuffer> buffers = idleBuffers.get(size);
+        ByteBuffer buf = buffers == null ? null : buffers.poll();
+        if (buf != null) {
+            idleBytes -= size;
+        }
+        return buf;
+    }
+
+    // drops idle buffers not fitting the capacity any more, along with cached blocks
+    private void trimIdleBuffers() {
+        Iterator<ArrayDeque<ByteBuffer>> it = idleBuffers.values().iterator();
+        while (cachedBytes + idleBytes > capacity && it.hasNext()) {
+            ArrayDeque<ByteBuffer> buffers = it.next();
+            while (cachedBytes + idleBytes > capacity && !buffers.isEmpty()) {
+                idleBytes -= buffers.poll().capacity();
+            }
+            if (buffers.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static int bufferSize(int len) {
+        return Math.max(1, (len + BUFFER_GRANULARITY - 1) / BUFFER_GRANULARITY) * BUFFER_GRANULARITY;
+    }
+}
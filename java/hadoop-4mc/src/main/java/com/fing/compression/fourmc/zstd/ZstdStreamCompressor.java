@@ -29,6 +29,7 @@ package com.fing.compression.fourmc.zstd;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import com.fing.compression.fourmc.ZstCodec;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.compress.Compressor;
 
@@ -47,10 +48,14 @@ public class ZstdStreamCompressor implements Compressor {
     private boolean finish;
     private boolean finished;
     private int compressionLevel;
+    private int workers;
 
     private long bytesRead = 0L;
     private long bytesWritten = 0L;
 
+    // false once the native library turns out to have no worker support
+    private static volatile boolean workersSupported = true;
+
     /* Opaque pointer to ZSTD_CStream context */
     private long cStream;
 
@@ -97,7 +102,16 @@ public class ZstdStreamCompressor implements Compressor {
     }
 
     public ZstdStreamCompressor(int compressionLevel) {
+        this(compressionLevel, 0);
+    }
+
+    /**
+     * @param compressionLevel zstd compression level
+     * @param workers          number of zstd worker threads, 0 means compression is done by the caller thread
+     */
+    public ZstdStreamCompressor(int compressionLevel, int workers) {
         this.compressionLevel = compressionLevel;
+        this.workers = workers;
         init();
     }
 
@@ -279,6 +293,26 @@ public class ZstdStreamCompressor implements Compressor {
         if (Zstd.isError(r)) {
             LOG.error("CompressInit failed! Error is:" +  Zstd.getErrorName(r));
         }
+        setWorkers();
+    }
+
+    /**
+     * Applies the number of workers to the native stream. A native library built before workers were supported
+     * lacks this call: compression then goes on in the caller thread.
+     */
+    private void setWorkers() {
+        if (!workersSupported) {
+            return;
+        }
+        try {
+            int r = setCStreamWorkers(cStream, workers);
+            if (Zstd.isError(r)) {
+                LOG.warn("Cannot use " + workers + " zstd workers: " + Zstd.getErrorName(r));
+            }
+        } catch (UnsatisfiedLinkError e) {
+            workersSupported = false;
+            LOG.warn("Outdated hadoop-4mc native library, zstd workers are not available: " + e);
+        }
     }
 
 
@@ -303,8 +337,16 @@ public class ZstdStreamCompressor implements Compressor {
         freeCStream(cStream);
     }
 
+    /**
+     * Takes compression level and workers from the configuration, if any, as done by CodecPool
+     * when handing out a pooled compressor. Native stream and buffers are kept.
+     */
     @Override
     public void reinit(Configuration configuration) {
+        if (configuration != null) {
+            compressionLevel = ZstCodec.getCompressionLevel(configuration);
+            workers = ZstCodec.getWorkers(configuration);
+        }
         reset();
     }
 
@@ -324,6 +366,7 @@ public class ZstdStreamCompressor implements Compressor {
 
     private static native int freeCStream(long stream);
     private static native int initCStream(long stream, int level);
+    private static native int setCStreamWorkers(long stream, int workers);
     private native int compressStream(long stream, ByteBuffer dst, int dstSize,
                                       ByteBuffer src, int srcSize);
     // private native int flushStream(long ctx, ByteBuffer dst, int dstSize);
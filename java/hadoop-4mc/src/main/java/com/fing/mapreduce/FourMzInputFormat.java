@@ -50,8 +50,10 @@ import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -86,6 +88,9 @@ public abstract class FourMzInputFormat<K, V> extends FileInputFormat<K, V> {
         }
     };
 
+    // status of files listed by last listStatus()
+    private Map<Path, FileStatus> listedFiles;
+
     @Override
     protected List<FileStatus> listStatus(JobContext job) throws IOException {
         List<FileStatus> files = super.listStatus(job);
@@ -99,6 +104,12 @@ public abstract class FourMzInputFormat<K, V> extends FileInputFormat<K, V> {
             addInputPath(results, fs, fileStatus, recursive);
         }
 
+        // kept for getSplits(), sparing a status request per file
+        listedFiles = new HashMap<Path, FileStatus>();
+        for (FileStatus fileStatus : results) {
+            listedFiles.put(fileStatus.getPath(), fileStatus);
+        }
+
         LOG.debug("Total 4mz input paths to process: " + results.size());
         return results;
     }
@@ -131,6 +142,7 @@ public abstract class FourMzInputFormat<K, V> extends FileInputFormat<K, V> {
 
         Path prevFile = null;
         FourMzBlockIndex prevIndex = null;
+        long prevFileSize = 0;
 
         for (InputSplit genericSplit : defaultSplits) {
             // Load the index.
@@ -142,9 +154,14 @@ public abstract class FourMzInputFormat<K, V> extends FileInputFormat<K, V> {
             if (file.equals(prevFile)) {
                 index = prevIndex;
             } else {
-                index = FourMzBlockIndex.readIndex(fs, file);
+                FileStatus status = listedFiles != null ? listedFiles.get(file) : null;
+                if (status == null) {
+                    status = fs.getFileStatus(file);
+                }
+                index = FourMzBlockIndex.readIndex(fs, status);
                 prevFile = file;
                 prevIndex = index;
+                prevFileSize = status.getLen();
             }
 
             if (index == null) {
@@ -160,7 +177,7 @@ public abstract class FourMzInputFormat<K, V> extends FileInputFormat<K, V> {
             long end = start + fileSplit.getLength();
 
             long fourMcStart = index.alignSliceStartToIndex(start, end);
-            long fourMcEnd = index.alignSliceEndToIndex(end, fs.getFileStatus(file).getLen());
+            long fourMcEnd = index.alignSliceEndToIndex(end, prevFileSize);
 
             if (fourMcStart != FourMzBlockIndex.NOT_FOUND && fourMcEnd != FourMzBlockIndex.NOT_FOUND) {
                 result.add(new FileSplit(file, fourMcStart, fourMcEnd - fourMcStart, fileSplit.getLocations()));
@@ -33,6 +33,9 @@
 **/
 package com.fing.mapreduce;
 
+import com.fing.compression.fourmc.FourMzCodec;
+import com.fing.compression.fourmc.FourMzInputStream;
+import com.fing.compression.fourmc.util.BlockCache;
 import com.fing.compression.fourmc.util.HadoopUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
@@ -42,6 +45,7 @@ import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionInputStream;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
@@ -63,6 +67,7 @@ public class FourMzLineRecordReader extends RecordReader<LongWritable, Text> {
     private long pos;
     private long end;
     private LineReader in;
+    private CompressionInputStream cin;
     private FSDataInputStream fileIn;
 
     private int maxLineLen = Integer.MAX_VALUE;
@@ -132,14 +137,24 @@ public class FourMzLineRecordReader extends RecordReader<LongWritable, Text> {
         fileIn = fs.open(split.getPath());
 
         // creates input stream and also reads the file header
-        in = new LineReader(codec.createInputStream(fileIn), job);
+        cin = codec.createInputStream(fileIn);
+        long blockCacheCapacity = job.getLong(FourMzCodec.FOURMZ_BLOCK_CACHE_KEY, -1);
+        if (blockCacheCapacity >= 0) {
+            // shared cache follows the configured capacity, 0 disabling it
+            BlockCache.getInstance().setCapacity(blockCacheCapacity);
+        }
+        if (blockCacheCapacity > 0 && cin instanceof FourMzInputStream) {
+            // serve blocks of files read again (e.g. by iterative jobs) from the shared block cache
+            ((FourMzInputStream) cin).setBlockCache(BlockCache.getInstance(), BlockCache.FileId.of(fs.getFileStatus(file)));
+        }
+        in = new LineReader(cin, job);
 
         if (start != 0) {
             fileIn.seek(start);
 
             // read and ignore the first line
             in.readLine(new Text());
-            start = fileIn.getPos();
+            start = cin.getPos();
         }
 
         this.pos = start;
@@ -155,7 +170,8 @@ public class FourMzLineRecordReader extends RecordReader<LongWritable, Text> {
             if (newSize == 0) {
                 return false;
             }
-            pos = fileIn.getPos();
+            // position of consumed data: with read-ahead, fileIn is further on
+            pos = cin.getPos();
 
             return true;
         }
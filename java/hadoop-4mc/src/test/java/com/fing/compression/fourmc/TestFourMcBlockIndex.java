@@ -69,6 +69,48 @@ public class TestFourMcBlockIndex extends TestCase {
 
     }
 
+    public void testEstimateTailSize() {
+        // small files are read whole, others at least 4KB
+        assertEquals(100 - 12, FourMcInputStream.estimateTailSize(100));
+        assertEquals(4 * 1024, FourMcInputStream.estimateTailSize(1024 * 1024));
+        // room for blocks compressed down to 10%, so a single read even for very compressible data
+        long fileSize = 10L * 1024 * 1024 * 1024;
+        long blocks = fileSize / (FourMcCodec.FOURMC_MAX_BLOCK_SIZE / 10);
+        assertTrue(FourMcInputStream.estimateTailSize(fileSize) >= 36 + 8 * blocks);
+        assertTrue(FourMzInputStream.estimateTailSize(fileSize) >= 36 + 8 * blocks);
+    }
+
+    public void testUncompressedSizes() {
+        FourMcBlockIndex idx = new FourMcBlockIndex(4);
+        for (int i = 0; i < 4; ++i) {
+            idx.set(i, 100 * (i + 1));
+        }
+        assertFalse(idx.hasUncompressedSizes());
+        assertEquals(FourMcBlockIndex.NOT_FOUND, idx.getTotalUncompressedBytes());
+        assertEquals(FourMcBlockIndex.NOT_FOUND, idx.getUncompressedPosition(1));
+        assertEquals(FourMcBlockIndex.NOT_FOUND, idx.findBlockAtUncompressedPosition(0));
+
+        idx.setUncompressedSizes(new int[]{1000, 1000, 0, 500}, 1000);
+        assertTrue(idx.hasUncompressedSizes());
+        assertEquals(1000, idx.getBlockSize());
+        assertEquals(2500, idx.getTotalUncompressedBytes());
+        assertEquals(0, idx.getUncompressedPosition(0));
+        assertEquals(2000, idx.getUncompressedPosition(3));
+        assertEquals(500, idx.getUncompressedSize(3));
+
+        assertEquals(0, idx.findBlockAtUncompressedPosition(999));
+        assertEquals(1, idx.findBlockAtUncompressedPosition(1000));
+        // empty block holds no position
+        assertEquals(3, idx.findBlockAtUncompressedPosition(2000));
+        assertEquals(FourMcBlockIndex.NOT_FOUND, idx.findBlockAtUncompressedPosition(2500));
+
+        try {
+            idx.setUncompressedSizes(new int[3], 1000);
+            fail("Block count mismatch");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
     public void testAlignSlice() {
         FourMcBlockIndex idx = new FourMcBlockIndex(4);
         idx.set(0, 100);
@@ -3,16 +3,22 @@ package com.fing.compression.fourmc;
 import java.io.*;
 import java.util.Random;
 
+import com.fing.compression.fourmc.util.BlockCache;
 import junit.framework.TestCase;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.compress.CodecPool;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionInputStream;
 import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.io.RandomDatum;
 import org.apache.hadoop.util.ReflectionUtils;
 
@@ -29,6 +35,1003 @@ public class TestFourMcCodec extends TestCase{
         codecTest(conf, seed, count * 10, "com.fing.compression.fourmc.ZstdCodec");
     }
 
+    public void testZstCodecWithWorkers() throws IOException {
+        Configuration workersConf = new Configuration(conf);
+        workersConf.setInt("io.compress.zst.compression.level", 3);
+        workersConf.setInt("io.compress.zst.workers", 3);
+        CompressionCodec codec = newCodec(workersConf, "com.fing.compression.fourmc.ZstCodec");
+
+        byte[] data = generateMixedData(seed, 13 * 1024 * 1024 + 123);
+        assertTrue(java.util.Arrays.equals(data, decompress(codec, compress(codec, data, seed))));
+    }
+
+    public void testFourMcParallelCompression() throws IOException {
+        parallelCompressionTest(FourMcCodec.FOURMC_COMPRESS_THREADS_KEY, FourMcCodec.FOURMC_WRITE_BEHIND_KEY, "com.fing.compression.fourmc.FourMcHighCodec");
+    }
+
+    public void testFourMzParallelCompression() throws IOException {
+        parallelCompressionTest(FourMzCodec.FOURMZ_COMPRESS_THREADS_KEY, FourMzCodec.FOURMZ_WRITE_BEHIND_KEY, "com.fing.compression.fourmc.FourMzCodec");
+    }
+
+    public void testFourMcBlockSize() throws IOException {
+        blockSizeTest(FourMcCodec.FOURMC_BLOCK_SIZE_KEY, "com.fing.compression.fourmc.FourMcCodec");
+    }
+
+    public void testFourMzBlockSize() throws IOException {
+        blockSizeTest(FourMzCodec.FOURMZ_BLOCK_SIZE_KEY, "com.fing.compression.fourmc.FourMzCodec");
+    }
+
+    public void testFourMzLargeBlocks() throws IOException {
+        byte[] data = generateMixedData(seed, 37 * 1024 * 1024 + 5);
+        String codecClass = "com.fing.compression.fourmc.FourMzCodec";
+
+        Configuration largeConf = new Configuration(conf);
+        largeConf.setInt(FourMzCodec.FOURMZ_BLOCK_SIZE_KEY, 16 * 1024 * 1024);
+        largeConf.setInt(FourMzCodec.FOURMZ_WINDOW_LOG_KEY, 24);
+        largeConf.setBoolean(FourMzCodec.FOURMZ_LONG_DISTANCE_MATCHING_KEY, true);
+        byte[] largeBlocks = compress(newCodec(largeConf, codecClass), data, seed);
+
+        // large blocks need 4mz v2 header
+        assertEquals(FourMzCodec.FOURMZ_MAGIC, java.nio.ByteBuffer.wrap(largeBlocks).getInt(0));
+        assertEquals(FourMzCodec.FOURMZ_VERSION_2, java.nio.ByteBuffer.wrap(largeBlocks).getInt(4));
+
+        // window settings must be honored by parallel compressors as well
+        Configuration parallelConf = new Configuration(largeConf);
+        parallelConf.setInt(FourMzCodec.FOURMZ_COMPRESS_THREADS_KEY, 3);
+        byte[] parallel = compress(newCodec(parallelConf, codecClass), data, seed);
+        assertTrue("parallel output differs from serial one", java.util.Arrays.equals(largeBlocks, parallel));
+
+        // readers configured with default block size handle v2 files
+        assertTrue(java.util.Arrays.equals(data, decompress(newCodec(conf, codecClass), largeBlocks)));
+    }
+
+    public void testFourMzDictionary() throws IOException {
+        // records built from a vocabulary bigger than what a single block can learn
+        Random random = new Random(seed);
+        String[] words = new String[2000];
+        for (int i = 0; i < words.length; ++i) {
+            StringBuilder word = new StringBuilder();
+            for (int j = 4 + random.nextInt(7); j > 0; --j) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+        String[] agents = new String[400];
+        for (int i = 0; i < agents.length; ++i) {
+            StringBuilder agent = new StringBuilder(words[random.nextInt(words.length)]);
+            for (int j = 0; j < 7; ++j) {
+                agent.append(' ').append(words[random.nextInt(words.length)]);
+            }
+            agents[i] = agent.toString();
+        }
+        java.util.List<byte[]> samples = new java.util.ArrayList<byte[]>();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (int i = 0; i < 20000; ++i) {
+            byte[] record = ("{\"id\":" + random.nextInt(1000000) + ",\"agent\":\"" + agents[random.nextInt(agents.length)]
+                    + "\",\"path\":\"/" + words[random.nextInt(words.length)] + "/" + words[random.nextInt(words.length)]
+                    + "\",\"status\":" + (random.nextBoolean() ? 200 : 404) + "}\n").getBytes("UTF-8");
+            if (i < 2000) {
+                samples.add(record);
+            }
+            records.write(record);
+        }
+        byte[] data = records.toByteArray();
+        byte[] dictionary = ZstdCompressor.trainDictionary(samples, 16 * 1024);
+        assertTrue(dictionary.length > 0 && dictionary.length <= 16 * 1024);
+
+        File dictFile = File.createTempFile("4mz", ".dict");
+        dictFile.deleteOnExit();
+        FileOutputStream dictOut = new FileOutputStream(dictFile);
+        dictOut.write(dictionary);
+        dictOut.close();
+
+        String codecClass = "com.fing.compression.fourmc.FourMzCodec";
+        Configuration smallConf = new Configuration(conf);
+        smallConf.setInt(FourMzCodec.FOURMZ_BLOCK_SIZE_KEY, FourMzCodec.FOURMZ_MIN_BLOCK_SIZE);
+        byte[] plain = compress(newCodec(smallConf, codecClass), data, seed);
+
+        Configuration dictConf = new Configuration(smallConf);
+        dictConf.set(FourMzCodec.FOURMZ_DICTIONARY_KEY, dictFile.toURI().toString());
+        byte[] withDict = compress(newCodec(dictConf, codecClass), data, seed);
+        assertEquals(FourMzCodec.FOURMZ_VERSION_2, java.nio.ByteBuffer.wrap(withDict).getInt(4));
+        assertTrue("dictionary did not help: " + withDict.length + " >= " + plain.length, withDict.length < plain.length);
+
+        dictConf.setInt(FourMzCodec.FOURMZ_COMPRESS_THREADS_KEY, 3);
+        assertTrue(java.util.Arrays.equals(withDict, compress(newCodec(dictConf, codecClass), data, seed)));
+
+        // pooled compressor keeps the dictionary digested for its previous stream
+        CompressionCodec dictCodec = newCodec(dictConf, codecClass);
+        byte[] digested = null;
+        for (int i = 0; i < 2; ++i) {
+            Compressor compressor = CodecPool.getCompressor(dictCodec, dictConf);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            CompressionOutputStream out = dictCodec.createOutputStream(compressed, compressor);
+            if (digested != null) {
+                assertSame(digested, ((ZstdCompressor) compressor).getDictionary());
+            }
+            digested = ((ZstdCompressor) compressor).getDictionary();
+            out.write(data);
+            out.close();
+            CodecPool.returnCompressor(compressor);
+            assertTrue(java.util.Arrays.equals(withDict, compressed.toByteArray()));
+        }
+
+        // dictionary comes from file header, readers need no settings
+        assertTrue(java.util.Arrays.equals(data, decompress(newCodec(conf, codecClass), withDict)));
+        assertTrue(java.util.Arrays.equals(data, decompress(newCodec(conf, codecClass), plain)));
+    }
+
+    public void testCodecPoolReuse() throws IOException {
+        byte[] data = generateMixedData(seed, 5 * 1024 * 1024 + 7);
+        for (String codecClass : new String[]{"com.fing.compression.fourmc.FourMcCodec", "com.fing.compression.fourmc.FourMzCodec"}) {
+            CompressionCodec codec = newCodec(conf, codecClass);
+            java.nio.ByteBuffer directBuf = null;
+            for (int i = 0; i < 3; ++i) {
+                Compressor compressor = CodecPool.getCompressor(codec, conf);
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                CompressionOutputStream out = codec.createOutputStream(compressed, compressor);
+                out.write(data);
+                out.close();
+                CodecPool.returnCompressor(compressor);
+
+                // stream closed in the middle of a block leaves the pooled decompressor ready for next one
+                Decompressor decompressor = CodecPool.getDecompressor(codec);
+                CompressionInputStream in = codec.createInputStream(new ByteArrayInputStream(compressed.toByteArray()), decompressor);
+                byte[] head = new byte[1000 + i];
+                assertEquals(head.length, in.read(head, 0, head.length));
+                in.close();
+                CodecPool.returnDecompressor(decompressor);
+                assertTrue(java.util.Arrays.equals(java.util.Arrays.copyOf(data, head.length), head));
+
+                decompressor = CodecPool.getDecompressor(codec);
+                in = codec.createInputStream(new ByteArrayInputStream(compressed.toByteArray()), decompressor);
+                byte[] result = new byte[data.length];
+                int pos = 0, n;
+                while (pos < result.length && (n = in.read(result, pos, result.length - pos)) > 0) {
+                    pos += n;
+                }
+                in.close();
+                CodecPool.returnDecompressor(decompressor);
+                assertTrue(java.util.Arrays.equals(data, result));
+
+                // pooled compressor keeps its direct buffers across streams
+                java.nio.ByteBuffer buf = compressor instanceof Lz4Compressor
+                        ? ((Lz4Compressor) compressor).getUncompressedDirectBuf()
+                        : ((ZstdCompressor) compressor).getUncompressedDirectBuf();
+                assertNotNull(buf);
+                if (i > 0) {
+                    assertSame(directBuf, buf);
+                }
+                directBuf = buf;
+            }
+        }
+    }
+
+    public void testFourMzAdaptiveCodec() throws IOException {
+        byte[] data = generateMixedData(seed, 9 * 1024 * 1024 + 1);
+        for (int threads = 1; threads <= 3; threads += 2) {
+            Configuration adaptiveConf = new Configuration(conf);
+            adaptiveConf.setInt(FourMzCodec.FOURMZ_COMPRESS_THREADS_KEY, threads);
+            adaptiveConf.setInt(FourMzCodec.FOURMZ_BLOCK_SIZE_KEY, 256 * 1024);
+            CompressionCodec codec = newCodec(adaptiveConf, "com.fing.compression.fourmc.FourMzAdaptiveCodec");
+            byte[] compressed = compress(codec, data, seed);
+            // any 4mz reader handles it
+            assertTrue(java.util.Arrays.equals(data, decompress(newCodec(conf, "com.fing.compression.fourmc.FourMzCodec"), compressed)));
+        }
+    }
+
+    public void testAdaptiveLevelController() {
+        ZstdAdaptiveCompressor.LevelController controller = new ZstdAdaptiveCompressor.LevelController(100, 1, 9);
+        assertEquals(3, controller.getLevel());
+        long mb = 1024 * 1024;
+
+        // 50MB/s is below target: down to min level, and no further
+        for (int i = 0; i < 5; ++i) {
+            controller.blockCompressed(controller.getLevel(), 4 * mb, 80 * 1000 * 1000L);
+        }
+        assertEquals(1, controller.getLevel());
+
+        // 400MB/s: goes up, but only with enough samples at each level
+        controller.blockCompressed(1, 4 * mb, 10 * 1000 * 1000L);
+        assertEquals(2, controller.getLevel());
+        controller.blockCompressed(2, 4 * mb, 10 * 1000 * 1000L);
+        assertEquals(2, controller.getLevel());
+        // stale sample of previous level is ignored
+        controller.blockCompressed(1, 4 * mb, 1000 * 1000 * 1000L);
+        assertEquals(2, controller.getLevel());
+        controller.blockCompressed(2, 4 * mb, 10 * 1000 * 1000L);
+        assertEquals(3, controller.getLevel());
+        for (int i = 0; i < 100; ++i) {
+            controller.blockCompressed(controller.getLevel(), 4 * mb, 10 * 1000 * 1000L);
+        }
+        assertEquals(9, controller.getLevel());
+
+        // fast enough, but the parallel writer is falling behind
+        controller.setBacklog(8, 8);
+        controller.blockCompressed(9, 4 * mb, 10 * 1000 * 1000L);
+        assertEquals(8, controller.getLevel());
+
+        // 60MB/s per thread on 2 threads keeps up with target
+        controller.setBacklog(2, 8);
+        controller.setParallelism(2);
+        for (int i = 0; i < 10; ++i) {
+            controller.blockCompressed(controller.getLevel(), 6 * mb, 100 * 1000 * 1000L);
+        }
+        assertEquals(8, controller.getLevel());
+    }
+
+    public void testIncompressibilityProbe() throws IOException {
+        Random random = new Random(seed);
+        byte[] noise = new byte[6 * 1024 * 1024];
+        random.nextBytes(noise);
+        byte[] text = generateMixedData(seed, 12 * 1024 * 1024);
+        for (int i = 0; i < text.length; ++i) {
+            text[i] = (byte) ('a' + (text[i] & 0x0F));
+        }
+        System.arraycopy(noise, 0, text, 0, noise.length);
+        byte[] data = text;
+
+        IncompressibilityProbe probe = new IncompressibilityProbe();
+        assertTrue(probe.isIncompressible(data, 0, 1024 * 1024));
+        assertFalse(probe.isIncompressible(data, 8 * 1024 * 1024, 1024 * 1024));
+        assertFalse(probe.isIncompressible(java.nio.ByteBuffer.wrap(data), 8 * 1024 * 1024, 1000));
+        assertEquals(3, probe.getStats().probedBlocks);
+        assertEquals(1, probe.getStats().skippedBlocks);
+
+        String[][] codecs = {
+                {"com.fing.compression.fourmc.FourMcHighCodec", FourMcCodec.FOURMC_PROBE_KEY, FourMcCodec.FOURMC_BLOCK_SIZE_KEY, FourMcCodec.FOURMC_COMPRESS_THREADS_KEY},
+                {"com.fing.compression.fourmc.FourMzCodec", FourMzCodec.FOURMZ_PROBE_KEY, FourMzCodec.FOURMZ_BLOCK_SIZE_KEY, FourMzCodec.FOURMZ_COMPRESS_THREADS_KEY}};
+        for (String[] codec : codecs) {
+            for (int threads = 1; threads <= 2; ++threads) {
+                Configuration plainConf = new Configuration(conf);
+                plainConf.setInt(codec[2], 1024 * 1024);
+                plainConf.setInt(codec[3], threads);
+                Configuration probeConf = new Configuration(plainConf);
+                probeConf.setBoolean(codec[1], true);
+
+                long skipped = IncompressibilityProbe.getTotalStats().skippedBlocks;
+                byte[] probed = compress(newCodec(probeConf, codec[0]), data, seed);
+                // noise blocks are stored as plain anyway: same output, without trying to compress them
+                assertEquals(6, IncompressibilityProbe.getTotalStats().skippedBlocks - skipped);
+                assertTrue(java.util.Arrays.equals(compress(newCodec(plainConf, codec[0]), data, seed), probed));
+                assertTrue(java.util.Arrays.equals(data, decompress(newCodec(conf, codec[0]), probed)));
+            }
+        }
+    }
+
+    public void testFourMcByteBuffers() throws IOException {
+        byteBufferTest("com.fing.compression.fourmc.FourMcMediumCodec");
+    }
+
+    public void testFourMzByteBuffers() throws IOException {
+        byteBufferTest("com.fing.compression.fourmc.FourMzCodec");
+    }
+
+    private void byteBufferTest(String codecClass) throws IOException {
+        byte[] data = generateMixedData(seed, 11 * 1024 * 1024 + 31);
+        CompressionCodec codec = newCodec(conf, codecClass);
+        byte[] expected = compress(codec, data, seed);
+
+        // same blocks as byte array writes, whatever the buffer kind and write size
+        Random random = new Random(seed);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        CompressionOutputStream out = codec.createOutputStream(compressed);
+        java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        while (direct.hasRemaining()) {
+            int len = Math.min(direct.remaining(), 1 + random.nextInt(6 * 1024 * 1024));
+            java.nio.ByteBuffer src = direct.slice();
+            src.limit(len);
+            if (random.nextInt(4) == 0) {
+                byte[] heap = new byte[len];
+                src.get(heap);
+                src = java.nio.ByteBuffer.wrap(heap);
+            }
+            if (out instanceof FourMcOutputStream) {
+                ((FourMcOutputStream) out).write(src);
+            } else {
+                ((FourMzOutputStream) out).write(src);
+            }
+            assertFalse(src.hasRemaining());
+            direct.position(direct.position() + len);
+        }
+        out.close();
+        assertTrue(java.util.Arrays.equals(expected, compressed.toByteArray()));
+
+        // reads into direct buffers big enough for whole blocks, or smaller ones
+        readIntoByteBuffers(codec, new ByteArrayInputStream(expected), data, seed);
+
+        // underlying stream with ByteBuffer reads: whole blocks go from it to direct buffers with no heap copy
+        ByteBufferReadableStream readable = new ByteBufferReadableStream(expected);
+        readIntoByteBuffers(codec, readable, data, seed);
+        assertTrue(readable.byteBufferReads > 0);
+
+        // memory mapped file: blocks are decompressed in place from mapped memory
+        File file = File.createTempFile("mapped", ".4m");
+        file.deleteOnExit();
+        FileOutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(expected);
+        fileOut.close();
+        readIntoByteBuffers(codec, new MappedFileInputStream(file), data, seed);
+
+        // first block decompressed on its own, between direct buffers
+        java.nio.ByteBuffer frame = java.nio.ByteBuffer.wrap(expected);
+        int firstBlockSize = frame.getInt(12);
+        int firstCompressedSize = frame.getInt(16);
+        if (firstCompressedSize < firstBlockSize) {
+            java.nio.ByteBuffer src = java.nio.ByteBuffer.allocateDirect(firstCompressedSize);
+            src.put(expected, 24, firstCompressedSize).flip();
+            java.nio.ByteBuffer dst = java.nio.ByteBuffer.allocateDirect(firstBlockSize);
+            ((DirectDecompressionCodec) codec).createDirectDecompressor().decompress(src, dst);
+            assertFalse(src.hasRemaining());
+            assertEquals(firstBlockSize, dst.position());
+            byte[] block = new byte[firstBlockSize];
+            dst.flip();
+            dst.get(block);
+            assertTrue(java.util.Arrays.equals(java.util.Arrays.copyOf(data, firstBlockSize), block));
+        }
+    }
+
+    /**
+     * Input stream with Hadoop 2 FSDataInputStream read(ByteBuffer) method.
+     */
+    public static class ByteBufferReadableStream extends ByteArrayInputStream {
+        int byteBufferReads;
+
+        public ByteBufferReadableStream(byte[] buf) {
+            super(buf);
+        }
+
+        public synchronized int read(java.nio.ByteBuffer dst) {
+            ++byteBufferReads;
+            int n = Math.min(available(), Math.min(dst.remaining(), 1 + (pos % 200000)));
+            if (n <= 0) {
+                return -1;
+            }
+            dst.put(buf, pos, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    private static void readIntoByteBuffers(CompressionCodec codec, InputStream compressed, byte[] data, int seed)
+            throws IOException {
+        Random random = new Random(seed);
+        CompressionInputStream in = codec.createInputStream(compressed);
+        java.nio.ByteBuffer result = java.nio.ByteBuffer.allocateDirect(data.length + 1);
+        int n;
+        do {
+            java.nio.ByteBuffer dst = result.slice();
+            // first read starts at a block boundary with room for a whole block, so the direct path is always taken
+            boolean big = result.position() == 0 || random.nextBoolean();
+            dst.limit(Math.min(dst.limit(), big ? 5 * 1024 * 1024 : 1 + random.nextInt(100000)));
+            n = in instanceof FourMcInputStream ? ((FourMcInputStream) in).read(dst) : ((FourMzInputStream) in).read(dst);
+            if (n > 0) {
+                assertEquals(n, dst.position());
+                result.position(result.position() + n);
+            }
+        } while (n >= 0);
+        in.close();
+        assertEquals(data.length, result.position());
+        byte[] decompressed = new byte[data.length];
+        result.flip();
+        result.get(decompressed);
+        assertTrue(java.util.Arrays.equals(data, decompressed));
+    }
+
+    public void testFourMcReadAhead() throws IOException {
+        readAheadTest(FourMcCodec.FOURMC_READ_AHEAD_KEY, FourMcCodec.FOURMC_DECOMPRESS_THREADS_KEY, "com.fing.compression.fourmc.FourMcCodec");
+    }
+
+    public void testFourMzReadAhead() throws IOException {
+        readAheadTest(FourMzCodec.FOURMZ_READ_AHEAD_KEY, FourMzCodec.FOURMZ_DECOMPRESS_THREADS_KEY, "com.fing.compression.fourmc.FourMzCodec");
+    }
+
+    public void testFourMcSeekableReader() throws IOException {
+        seekableReaderTest(FourMcCodec.FOURMC_BLOCK_SIZE_KEY, "com.fing.compression.fourmc.FourMcCodec");
+    }
+
+    public void testFourMzSeekableReader() throws IOException {
+        seekableReaderTest(FourMzCodec.FOURMZ_BLOCK_SIZE_KEY, "com.fing.compression.fourmc.FourMzCodec");
+    }
+
+    private void seekableReaderTest(String blockSizeKey, String codecClass) throws IOException {
+        byte[] data = generateMixedData(seed, 2 * 1024 * 1024 + 13);
+        Configuration smallConf = new Configuration(conf);
+        smallConf.setInt(blockSizeKey, 64 * 1024);
+        File file = File.createTempFile("seekable", ".4m");
+        file.deleteOnExit();
+        FileOutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(compress(newCodec(smallConf, codecClass), data, seed));
+        fileOut.close();
+
+        FileSystem fs = FileSystem.getLocal(conf);
+        Path path = new Path(file.toURI());
+        BlockSeekableReader reader = codecClass.endsWith("FourMcCodec")
+                ? new FourMcSeekableReader(fs, path) : new FourMzSeekableReader(fs, path);
+        assertEquals((data.length + 64 * 1024 - 1) / (64 * 1024), reader.getNumberOfBlocks());
+
+        // point lookups in any order, backwards and forwards, within and across blocks
+        Random random = new Random(seed);
+        for (int i = 0; i < 100; ++i) {
+            long position = random.nextInt(data.length);
+            int len = (int) Math.min(data.length - position, random.nextInt(100 * 1024));
+            byte[] b = new byte[len];
+            reader.readFully(position, b, 0, len);
+            assertEquals(position + len, reader.getPos());
+            assertTrue(java.util.Arrays.equals(java.util.Arrays.copyOfRange(data, (int) position, (int) position + len), b));
+        }
+
+        // sequential reads go on up to end of data
+        reader.seek(data.length - 100 * 1024 - 7);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[10000];
+        int n;
+        while ((n = reader.read(buf, 0, buf.length)) > 0) {
+            out.write(buf, 0, n);
+        }
+        assertTrue(java.util.Arrays.equals(java.util.Arrays.copyOfRange(data, data.length - 100 * 1024 - 7, data.length),
+                out.toByteArray()));
+        assertEquals(data.length, reader.getLength());
+        reader.seek(data.length);
+        assertEquals(-1, reader.read());
+        try {
+            reader.seek(data.length + 1);
+            fail("Seek after end of data");
+        } catch (EOFException expected) {
+        }
+        reader.seek(0);
+        assertEquals(data[0] & 0xff, reader.read());
+        reader.close();
+
+        // same lookups on the memory mapped file
+        reader = codecClass.endsWith("FourMcCodec") ? new FourMcSeekableReader(file) : new FourMzSeekableReader(file);
+        assertEquals(data.length, reader.getLength());
+        random = new Random(seed);
+        for (int i = 0; i < 100; ++i) {
+            long position = random.nextInt(data.length);
+            int len = (int) Math.min(data.length - position, random.nextInt(100 * 1024));
+            byte[] b = new byte[len];
+            reader.readFully(position, b, 0, len);
+            assertTrue(java.util.Arrays.equals(java.util.Arrays.copyOfRange(data, (int) position, (int) position + len), b));
+        }
+        reader.close();
+
+        // with the block cache, second reader reads data from cache, up to its capacity
+        BlockCache cache = BlockCache.getInstance();
+        cache.setCapacity(16 * 64 * 1024);
+        BlockCache.Stats before = cache.getStats();
+        try {
+            int blocks = reader.getNumberOfBlocks();
+            for (int pass = 0; pass < 2; ++pass) {
+                reader = codecClass.endsWith("FourMcCodec")
+                        ? new FourMcSeekableReader(fs, path) : new FourMzSeekableReader(fs, path);
+                for (int i = blocks - 16; i < blocks; ++i) {
+                    int position = i * 64 * 1024;
+                    int len = Math.min(data.length - position, 64 * 1024);
+                    byte[] b = new byte[len];
+                    reader.readFully(position, b, 0, len);
+                    assertTrue(java.util.Arrays.equals(java.util.Arrays.copyOfRange(data, position, position + len), b));
+                }
+                reader.close();
+            }
+            BlockCache.Stats stats = cache.getStats();
+            assertEquals(16, stats.misses - before.misses);
+            assertEquals(16, stats.hits - before.hits);
+            assertEquals(before.evictions, stats.evictions);
+            assertTrue(stats.cachedBytes <= cache.getCapacity());
+
+            // buffers of evicted blocks are kept only within capacity, and serve next blocks
+            cache.setCapacity(4 * 64 * 1024);
+            stats = cache.getStats();
+            assertEquals(4, stats.cachedBlocks);
+            assertEquals(12, stats.evictions - before.evictions);
+            assertTrue(stats.cachedBytes + stats.idleBytes <= cache.getCapacity());
+            reader = codecClass.endsWith("FourMcCodec")
+                    ? new FourMcSeekableReader(fs, path) : new FourMzSeekableReader(fs, path);
+            byte[] b = new byte[64 * 1024];
+            reader.readFully(0, b, 0, b.length);
+            reader.close();
+            assertEquals(stats.allocatedBuffers, cache.getStats().allocatedBuffers);
+            assertTrue(cache.getStats().cachedBytes + cache.getStats().idleBytes <= cache.getCapacity());
+        } finally {
+            cache.setCapacity(0);
+        }
+    }
+
+    public void testFourMcSkip() throws IOException {
+        skipTest(FourMcCodec.FOURMC_BLOCK_SIZE_KEY, "com.fing.compression.fourmc.FourMcCodec");
+    }
+
+    public void testFourMzSkip() throws IOException {
+        skipTest(FourMzCodec.FOURMZ_BLOCK_SIZE_KEY, "com.fing.compression.fourmc.FourMzCodec");
+    }
+
+    private void skipTest(String blockSizeKey, String codecClass) throws IOException {
+        byte[] data = generateMixedData(seed, 2 * 1024 * 1024 + 13);
+        Configuration smallConf = new Configuration(conf);
+        smallConf.setInt(blockSizeKey, 64 * 1024);
+        CompressionCodec codec = newCodec(smallConf, codecClass);
+        byte[] compressed = compress(codec, data, seed);
+        File file = File.createTempFile("skip", ".4m");
+        file.deleteOnExit();
+        FileOutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(compressed);
+        fileOut.close();
+
+        // seekable file, and plain stream skipped over
+        InputStream[] inputs = {FileSystem.getLocal(conf).open(new Path(file.toURI())), new ByteArrayInputStream(compressed)};
+        for (InputStream input : inputs) {
+            CompressionInputStream in = codec.createInputStream(input);
+            Random random = new Random(seed);
+            int pos = 0;
+            while (pos < data.length) {
+                long n = random.nextInt(300 * 1024);
+                long skipped = in.skip(n);
+                assertEquals(Math.min(n, data.length - pos), skipped);
+                pos += skipped;
+                int len = Math.min(data.length - pos, random.nextInt(1000));
+                byte[] b = new byte[len];
+                readFully(in, b);
+                assertTrue(java.util.Arrays.equals(java.util.Arrays.copyOfRange(data, pos, pos + len), b));
+                pos += len;
+            }
+            assertEquals(-1, in.read());
+            assertEquals(0, in.skip(10));
+            in.close();
+        }
+
+        // blocks skipped as a whole are not decompressed: only the last one is
+        CompressionInputStream in = codec.createInputStream(new ByteArrayInputStream(compressed));
+        ChecksumVerification verification = in instanceof FourMcInputStream
+                ? ((FourMcInputStream) in).getChecksumVerification() : ((FourMzInputStream) in).getChecksumVerification();
+        assertEquals(data.length - 10, in.skip(data.length - 10));
+        byte[] tail = new byte[10];
+        readFully(in, tail);
+        assertTrue(java.util.Arrays.equals(java.util.Arrays.copyOfRange(data, data.length - 10, data.length), tail));
+        assertEquals(1, verification.getBlocks());
+        in.close();
+    }
+
+    private static void readFully(InputStream in, byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int n = in.read(b, off, b.length - off);
+            assertTrue(n > 0);
+            off += n;
+        }
+    }
+
+    public void testFourMcRangeReads() throws IOException {
+        rangeReadTest(FourMcCodec.FOURMC_BLOCK_SIZE_KEY, "com.fing.compression.fourmc.FourMcCodec");
+    }
+
+    public void testFourMzRangeReads() throws IOException {
+        rangeReadTest(FourMzCodec.FOURMZ_BLOCK_SIZE_KEY, "com.fing.compression.fourmc.FourMzCodec");
+    }
+
+    private void rangeReadTest(String blockSizeKey, String codecClass) throws IOException {
+        byte[] data = generateMixedData(seed, 2 * 1024 * 1024 + 13);
+        Configuration smallConf = new Configuration(conf);
+        smallConf.setInt(blockSizeKey, 64 * 1024);
+        File file = File.createTempFile("ranges", ".4m");
+        file.deleteOnExit();
+        FileOutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(compress(newCodec(smallConf, codecClass), data, seed));
+        fileOut.close();
+        Path path = new Path(file.toURI());
+        long[] blockOffsets = codecClass.endsWith("FourMcCodec")
+                ? FourMcBlockIndex.readIndex(FileSystem.getLocal(conf), path).getPositions()
+                : FourMzBlockIndex.readIndex(FileSystem.getLocal(conf), path).getPositions();
+
+        // neighbour blocks coalesced up to max range size, header along with first block
+        assertEquals(1, BlockRangeInputStream.plan(blockOffsets, file.length(), 0, file.length(),
+                0, BlockRangeInputStream.DEFAULT_MAX_RANGE_SIZE).size());
+        java.util.List<BlockRangeInputStream.Range> small = BlockRangeInputStream.plan(blockOffsets, file.length(),
+                file.length() / 2, file.length(), 0, 200 * 1024);
+        assertEquals(0, small.get(0).offset);
+        assertEquals(blockOffsets[0], small.get(0).length);
+        for (int i = 1; i < small.size(); ++i) {
+            assertTrue(small.get(i).length <= 200 * 1024);
+            assertTrue(i == 1 || small.get(i).offset == small.get(i - 1).end());
+        }
+        assertEquals(file.length(), small.get(small.size() - 1).end());
+
+        // splits read with one positioned read for the footer then one per planned range, giving back the data,
+        // decompressed as set up by the codec
+        smallConf.setInt(blockSizeKey.replace("blocksize", "readahead.blocks"), 2);
+        CompressionCodec codec = newCodec(smallConf, codecClass);
+        CountingFileSystem fs = new CountingFileSystem(FileSystem.getLocal(conf));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long[] splits = {0, file.length() / 3, 2 * file.length() / 3, file.length()};
+        int expectedReads = 0;
+        for (int i = 0; i < 3; ++i) {
+            expectedReads += 1 + BlockRangeInputStream.plan(blockOffsets, file.length(), splits[i], splits[i + 1],
+                    BlockRangeInputStream.DEFAULT_MAX_GAP, BlockRangeInputStream.DEFAULT_MAX_RANGE_SIZE).size();
+            InputStream in = codecClass.endsWith("FourMcCodec")
+                    ? FourMcInputStream.openSplit((FourMcCodec) codec, fs, path, splits[i], splits[i + 1], 4)
+                    : FourMzInputStream.openSplit((FourMzCodec) codec, fs, path, splits[i], splits[i + 1], 4);
+            byte[] buf = new byte[10000];
+            int n;
+            while ((n = in.read(buf, 0, buf.length)) > 0) {
+                out.write(buf, 0, n);
+            }
+            in.close();
+        }
+        assertTrue(java.util.Arrays.equals(data, out.toByteArray()));
+        assertEquals(3, fs.opens.get());
+        assertEquals(expectedReads, fs.positionedReads.get());
+    }
+
+    public void testFourMcFooterReads() throws IOException {
+        footerReadTest(FourMcCodec.FOURMC_BLOCK_SIZE_KEY, "com.fing.compression.fourmc.FourMcCodec");
+    }
+
+    public void testFourMzFooterReads() throws IOException {
+        footerReadTest(FourMzCodec.FOURMZ_BLOCK_SIZE_KEY, "com.fing.compression.fourmc.FourMzCodec");
+    }
+
+    private void footerReadTest(String blockSizeKey, String codecClass) throws IOException {
+        Configuration smallConf = new Configuration(conf);
+        smallConf.setInt(blockSizeKey, 64 * 1024);
+        CompressionCodec codec = newCodec(smallConf, codecClass);
+        // usual data, then so compressible data that footer outgrows the estimated tail
+        byte[][] inputs = {generateMixedData(seed, 2 * 1024 * 1024 + 13), new byte[1100 * 64 * 1024]};
+        int[] expectedReads = {1, 2};
+        for (int i = 0; i < inputs.length; ++i) {
+            File file = File.createTempFile("footer", ".4m");
+            file.deleteOnExit();
+            FileOutputStream fileOut = new FileOutputStream(file);
+            fileOut.write(compress(codec, inputs[i], seed));
+            fileOut.close();
+
+            CountingFileSystem fs = new CountingFileSystem(FileSystem.getLocal(conf));
+            org.apache.hadoop.fs.FileStatus status = fs.getFileStatus(new Path(file.toURI()));
+            long[] blockOffsets = codecClass.endsWith("FourMcCodec")
+                    ? FourMcBlockIndex.readIndex(fs, status).getPositions()
+                    : FourMzBlockIndex.readIndex(fs, status).getPositions();
+            assertEquals((inputs[i].length + 64 * 1024 - 1) / (64 * 1024), blockOffsets.length);
+            assertEquals(1, fs.opens.get());
+            assertEquals(expectedReads[i], fs.positionedReads.get());
+        }
+    }
+
+    public void testFourMcFooterV2() throws IOException {
+        footerV2Test(FourMcCodec.FOURMC_BLOCK_SIZE_KEY, FourMcCodec.FOURMC_FOOTER_VERSION_KEY,
+                FourMcCodec.FOURMC_COMPRESS_THREADS_KEY, "com.fing.compression.fourmc.FourMcCodec");
+    }
+
+    public void testFourMzFooterV2() throws IOException {
+        footerV2Test(FourMzCodec.FOURMZ_BLOCK_SIZE_KEY, FourMzCodec.FOURMZ_FOOTER_VERSION_KEY,
+                FourMzCodec.FOURMZ_COMPRESS_THREADS_KEY, "com.fing.compression.fourmc.FourMzCodec");
+    }
+
+    private void footerV2Test(String blockSizeKey, String footerVersionKey, String threadsKey, String codecClass)
+            throws IOException {
+        byte[] data = generateMixedData(seed, 2 * 1024 * 1024 + 13);
+        boolean fourMc = codecClass.endsWith("FourMcCodec");
+        for (int threads : new int[]{1, 3}) {
+            Configuration v2Conf = new Configuration(conf);
+            v2Conf.setInt(blockSizeKey, 64 * 1024);
+            v2Conf.setInt(footerVersionKey, 2);
+            v2Conf.setInt(threadsKey, threads);
+            CompressionCodec codec = newCodec(v2Conf, codecClass);
+            byte[] compressed = compress(codec, data, seed);
+            assertTrue(java.util.Arrays.equals(data, decompress(codec, compressed)));
+
+            File file = File.createTempFile("footer2", ".4m");
+            file.deleteOnExit();
+            FileOutputStream fileOut = new FileOutputStream(file);
+            fileOut.write(compressed);
+            fileOut.close();
+
+            CountingFileSystem fs = new CountingFileSystem(FileSystem.getLocal(conf));
+            org.apache.hadoop.fs.FileStatus status = fs.getFileStatus(new Path(file.toURI()));
+            int blocks = (data.length + 64 * 1024 - 1) / (64 * 1024);
+            if (fourMc) {
+                FourMcBlockIndex index = FourMcBlockIndex.readIndex(fs, status);
+                assertEquals(blocks, index.getNumberOfBlocks());
+                assertTrue(index.hasUncompressedSizes());
+                assertEquals(64 * 1024, index.getBlockSize());
+                assertEquals(data.length, index.getTotalUncompressedBytes());
+                assertEquals(13, index.getUncompressedSize(blocks - 1));
+                assertEquals((blocks - 1) * 64L * 1024, index.getUncompressedPosition(blocks - 1));
+                assertEquals(blocks - 1, index.findBlockAtUncompressedPosition(data.length - 1));
+            } else {
+                FourMzBlockIndex index = FourMzBlockIndex.readIndex(fs, status);
+                assertEquals(blocks, index.getNumberOfBlocks());
+                assertTrue(index.hasUncompressedSizes());
+                assertEquals(64 * 1024, index.getBlockSize());
+                assertEquals(data.length, index.getTotalUncompressedBytes());
+                assertEquals(13, index.getUncompressedSize(blocks - 1));
+                assertEquals((blocks - 1) * 64L * 1024, index.getUncompressedPosition(blocks - 1));
+                assertEquals(blocks - 1, index.findBlockAtUncompressedPosition(data.length - 1));
+            }
+
+            // random access from footer alone: no block header read to locate positions
+            fs.positionedReads.set(0);
+            BlockSeekableReader reader = fourMc ? new FourMcSeekableReader(fs, status) : new FourMzSeekableReader(fs, status);
+            assertEquals(data.length, reader.getLength());
+            assertEquals(1, fs.positionedReads.get());
+            byte[] b = new byte[1000];
+            reader.readFully(data.length - 1000, b, 0, b.length);
+            assertTrue(java.util.Arrays.equals(java.util.Arrays.copyOfRange(data, data.length - 1000, data.length), b));
+            reader.close();
+        }
+
+        // version 1 is still the default, with no uncompressed sizes
+        Configuration v1Conf = new Configuration(conf);
+        v1Conf.setInt(blockSizeKey, 64 * 1024);
+        File file = File.createTempFile("footer1", ".4m");
+        file.deleteOnExit();
+        FileOutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(compress(newCodec(v1Conf, codecClass), data, seed));
+        fileOut.close();
+        Path path = new Path(file.toURI());
+        FileSystem fs = FileSystem.getLocal(conf);
+        if (fourMc) {
+            FourMcBlockIndex index = FourMcBlockIndex.readIndex(fs, path);
+            assertFalse(index.hasUncompressedSizes());
+            assertEquals(FourMcBlockIndex.NOT_FOUND, index.getTotalUncompressedBytes());
+        } else {
+            FourMzBlockIndex index = FourMzBlockIndex.readIndex(fs, path);
+            assertFalse(index.hasUncompressedSizes());
+            assertEquals(FourMzBlockIndex.NOT_FOUND, index.getTotalUncompressedBytes());
+        }
+    }
+
+    /**
+     * File system counting the requests made to the underlying one: opens, and positioned reads of opened files.
+     */
+    public static class CountingFileSystem extends org.apache.hadoop.fs.FilterFileSystem {
+        final java.util.concurrent.atomic.AtomicInteger opens = new java.util.concurrent.atomic.AtomicInteger();
+        final java.util.concurrent.atomic.AtomicInteger positionedReads = new java.util.concurrent.atomic.AtomicInteger();
+
+        public CountingFileSystem(FileSystem fs) {
+            super(fs);
+        }
+
+        @Override
+        public org.apache.hadoop.fs.FSDataInputStream open(Path f, int bufferSize) throws IOException {
+            opens.incrementAndGet();
+            final org.apache.hadoop.fs.FSDataInputStream in = super.open(f, bufferSize);
+            return new org.apache.hadoop.fs.FSDataInputStream(new org.apache.hadoop.fs.FSInputStream() {
+                public void seek(long pos) throws IOException {
+                    in.seek(pos);
+                }
+
+                public long getPos() throws IOException {
+                    return in.getPos();
+                }
+
+                public boolean seekToNewSource(long targetPos) throws IOException {
+                    return false;
+                }
+
+                public int read() throws IOException {
+                    return in.read();
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return in.read(b, off, len);
+                }
+
+                public int read(long position, byte[] b, int off, int len) throws IOException {
+                    positionedReads.incrementAndGet();
+                    return in.read(position, b, off, len);
+                }
+
+                public void readFully(long position, byte[] b, int off, int len) throws IOException {
+                    positionedReads.incrementAndGet();
+                    in.readFully(position, b, off, len);
+                }
+
+                public void close() throws IOException {
+                    in.close();
+                }
+            });
+        }
+    }
+
+    public void testFourMcCorruptedBlock() throws IOException {
+        corruptedBlockTest(FourMcCodec.FOURMC_READ_AHEAD_KEY, "com.fing.compression.fourmc.FourMcCodec");
+        checksumVerificationTest(FourMcCodec.FOURMC_CHECKSUM_VERIFY_KEY, FourMcCodec.FOURMC_CHECKSUM_SAMPLE_INTERVAL_KEY,
+                "com.fing.compression.fourmc.FourMcCodec");
+    }
+
+    public void testFourMzCorruptedBlock() throws IOException {
+        corruptedBlockTest(FourMzCodec.FOURMZ_READ_AHEAD_KEY, "com.fing.compression.fourmc.FourMzCodec");
+        checksumVerificationTest(FourMzCodec.FOURMZ_CHECKSUM_VERIFY_KEY, FourMzCodec.FOURMZ_CHECKSUM_SAMPLE_INTERVAL_KEY,
+                "com.fing.compression.fourmc.FourMzCodec");
+    }
+
+    private void corruptedBlockTest(String readAheadKey, String codecClass) throws IOException {
+        byte[] data = new byte[256 * 1024];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) ('a' + i % 7);
+        }
+        CompressionCodec codec = newCodec(conf, codecClass);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        CompressionOutputStream out = codec.createOutputStream(bos);
+        int headerSize = bos.size();
+        out.write(data);
+        out.close();
+
+        // flip a byte of the first (compressed) block payload, right after its 12 bytes header
+        byte[] compressed = bos.toByteArray();
+        compressed[headerSize + 12 + 1] ^= 0x55;
+
+        Configuration readAheadConf = new Configuration(conf);
+        readAheadConf.setInt(readAheadKey, 2);
+        for (CompressionCodec c : new CompressionCodec[]{codec, newCodec(readAheadConf, codecClass)}) {
+            try {
+                decompress(c, compressed);
+                fail("Corrupted block not detected");
+            } catch (IOException e) {
+                assertEquals("Corrupted compressed block (invalid checksum)", e.getMessage());
+            }
+        }
+
+        // with read-ahead, a caller going on after the failure gets it again rather than next block
+        CompressionInputStream in = newCodec(readAheadConf, codecClass).createInputStream(new ByteArrayInputStream(compressed));
+        byte[] buf = new byte[1024];
+        for (int i = 0; i < 2; ++i) {
+            try {
+                in.read(buf, 0, buf.length);
+                fail("Corrupted block not detected");
+            } catch (IOException e) {
+                assertEquals("Corrupted compressed block (invalid checksum)", e.getMessage());
+            }
+        }
+        in.close();
+    }
+
+    private void checksumVerificationTest(String verifyKey, String intervalKey, String codecClass) throws IOException {
+        // 3 blocks of default size
+        byte[] data = generateMixedData(seed, 9 * 1024 * 1024 + 5);
+        byte[] compressed = compress(newCodec(conf, codecClass), data, seed);
+
+        String[] policies = {ChecksumVerification.ALWAYS, ChecksumVerification.SAMPLED, ChecksumVerification.OFF};
+        int[] verified = {3, 2, 0};
+        for (int i = 0; i < policies.length; ++i) {
+            Configuration policyConf = new Configuration(conf);
+            policyConf.set(verifyKey, policies[i]);
+            policyConf.setInt(intervalKey, 2);
+            CompressionInputStream in = newCodec(policyConf, codecClass).createInputStream(new ByteArrayInputStream(compressed));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf, 0, buf.length)) > 0) {
+                out.write(buf, 0, n);
+            }
+            ChecksumVerification verification = in instanceof FourMcInputStream
+                    ? ((FourMcInputStream) in).getChecksumVerification()
+                    : ((FourMzInputStream) in).getChecksumVerification();
+            in.close();
+            assertTrue(java.util.Arrays.equals(data, out.toByteArray()));
+            assertEquals(3, verification.getBlocks());
+            assertEquals(verified[i], verification.getVerifiedBlocks());
+        }
+    }
+
+    private void readAheadTest(String readAheadKey, String threadsKey, String codecClass) throws IOException {
+        byte[] data = generateMixedData(seed, 15 * 1024 * 1024 + 7);
+        byte[] compressed = compress(newCodec(conf, codecClass), data, seed);
+
+        Configuration readAheadConf = new Configuration(conf);
+        readAheadConf.setInt(readAheadKey, 3);
+        CompressionCodec codec = newCodec(readAheadConf, codecClass);
+        assertTrue(java.util.Arrays.equals(data, decompress(codec, compressed)));
+
+        // closing in the middle of the stream stops the read-ahead thread, pooled decompressor can be reused
+        Decompressor decompressor = CodecPool.getDecompressor(codec);
+        CompressionInputStream in = codec.createInputStream(new ByteArrayInputStream(compressed), decompressor);
+        byte[] head = new byte[5 * 1024 * 1024 + 3];
+        int n = 0;
+        while (n < head.length) {
+            n += in.read(head, n, head.length - n);
+        }
+        in.close();
+        assertTrue(java.util.Arrays.equals(java.util.Arrays.copyOf(data, head.length), head));
+        CodecPool.returnDecompressor(decompressor);
+
+        decompressor = CodecPool.getDecompressor(codec);
+        in = codec.createInputStream(new ByteArrayInputStream(compressed), decompressor);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[100 * 1024];
+        while ((n = in.read(buf, 0, buf.length)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        CodecPool.returnDecompressor(decompressor);
+        assertTrue(java.util.Arrays.equals(data, out.toByteArray()));
+
+        // blocks decompressed concurrently, consumed in order at the same underlying position of serial reads
+        Configuration parallelConf = new Configuration(conf);
+        parallelConf.setInt(threadsKey, 4);
+        CompressionCodec parallelCodec = newCodec(parallelConf, codecClass);
+        CompressionInputStream serialIn = newCodec(conf, codecClass).createInputStream(new ByteArrayInputStream(compressed));
+        CompressionInputStream parallelIn = parallelCodec.createInputStream(new ByteArrayInputStream(compressed));
+        Random random = new Random(seed);
+        byte[] serialBuf = new byte[buf.length];
+        out.reset();
+        while ((n = parallelIn.read(buf, 0, 1 + random.nextInt(buf.length))) > 0) {
+            assertEquals(n, serialIn.read(serialBuf, 0, n));
+            assertEquals(serialIn.getPos(), parallelIn.getPos());
+            out.write(buf, 0, n);
+        }
+        serialIn.close();
+        parallelIn.close();
+        assertTrue(java.util.Arrays.equals(data, out.toByteArray()));
+    }
+
+    private void blockSizeTest(String blockSizeKey, String codecClass) throws IOException {
+        byte[] data = generateMixedData(seed, 9 * 1024 * 1024 + 17);
+
+        Configuration smallConf = new Configuration(conf);
+        smallConf.setInt(blockSizeKey, 64 * 1024);
+        CompressionCodec smallCodec = newCodec(smallConf, codecClass);
+        CompressionCodec defaultCodec = newCodec(conf, codecClass);
+
+        byte[] smallBlocks = compress(smallCodec, data, seed);
+        byte[] defaultBlocks = compress(defaultCodec, data, seed);
+
+        // blocks are packed full whatever the size of writes
+        assertEquals((data.length + 64 * 1024 - 1) / (64 * 1024), countFullBlocks(smallBlocks, 64 * 1024));
+
+        // any reader must handle any block size
+        assertTrue(java.util.Arrays.equals(data, decompress(defaultCodec, smallBlocks)));
+        assertTrue(java.util.Arrays.equals(data, decompress(smallCodec, defaultBlocks)));
+        assertTrue(java.util.Arrays.equals(data, decompress(smallCodec, smallBlocks)));
+    }
+
+    private void parallelCompressionTest(String threadsKey, String writeBehindKey, String codecClass) throws IOException {
+        byte[] data = generateMixedData(seed, 13 * 1024 * 1024 + 123);
+
+        Configuration serialConf = new Configuration(conf);
+        serialConf.setInt(threadsKey, 1);
+        byte[] serial = compress(newCodec(serialConf, codecClass), data, seed);
+
+        Configuration parallelConf = new Configuration(conf);
+        parallelConf.setInt(threadsKey, 4);
+        byte[] parallel = compress(newCodec(parallelConf, codecClass), data, seed);
+
+        assertTrue("parallel output differs from serial one", java.util.Arrays.equals(serial, parallel));
+        assertTrue(java.util.Arrays.equals(data, decompress(newCodec(parallelConf, codecClass), parallel)));
+
+        // blocks written by a background thread while next one is compressed
+        Configuration writeBehindConf = new Configuration(serialConf);
+        writeBehindConf.setInt(writeBehindKey, 2);
+        byte[] writeBehind = compress(newCodec(writeBehindConf, codecClass), data, seed);
+        assertTrue("write behind output differs from serial one", java.util.Arrays.equals(serial, writeBehind));
+
+        // a failing close still stops compress threads
+        int threads = countThreads("4mc-compressor-");
+        CompressionOutputStream out = newCodec(parallelConf, codecClass).createOutputStream(new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                throw new IOException("close failed");
+            }
+        });
+        out.write(data, 0, 1024 * 1024);
+        try {
+            out.close();
+            fail("Close of underlying stream failed");
+        } catch (IOException expected) {
+        }
+        assertEquals(threads, countThreads("4mc-compressor-"));
+    }
+
+    private static int countThreads(String namePrefix) {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.isAlive() && t.getName().startsWith(namePrefix)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
     private static void codecTest(Configuration conf, int seed, int count,
                                   String codecClass)
             throws IOException {
@@ -110,4 +1113,82 @@ public class TestFourMcCodec extends TestCase{
         LOG.info("SUCCESS! Completed checking " + count + " records");
     }
 
+    private static CompressionCodec newCodec(Configuration conf, String codecClass) throws IOException {
+        try {
+            return (CompressionCodec) ReflectionUtils.newInstance(conf.getClassByName(codecClass), conf);
+        } catch (ClassNotFoundException cnfe) {
+            throw new IOException("Illegal codec!");
+        }
+    }
+
+    /**
+     * Text-like compressible data interleaved with random chunks, so that both compressed and stored blocks are produced.
+     */
+    static byte[] generateMixedData(int seed, int size) {
+        Random random = new Random(seed);
+        byte[] data = new byte[size];
+        int pos = 0;
+        while (pos < size) {
+            int chunk = Math.min(size - pos, 256 * 1024 + random.nextInt(3 * 1024 * 1024));
+            if (random.nextInt(3) == 0) {
+                byte[] noise = new byte[chunk];
+                random.nextBytes(noise);
+                System.arraycopy(noise, 0, data, pos, chunk);
+            } else {
+                for (int i = 0; i < chunk; ++i) {
+                    data[pos + i] = (byte) ('a' + (i % 7 == 0 ? random.nextInt(26) : (i / 13) % 26));
+                }
+            }
+            pos += chunk;
+        }
+        return data;
+    }
+
+    /**
+     * Compresses data using writes of random size, some of them bigger than a block.
+     */
+    static byte[] compress(CompressionCodec codec, byte[] data, int seed) throws IOException {
+        Random random = new Random(seed);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        CompressionOutputStream out = codec.createOutputStream(compressed);
+        int pos = 0;
+        while (pos < data.length) {
+            int len = random.nextInt(4) == 0 ? random.nextInt(6 * 1024 * 1024) : random.nextInt(64 * 1024);
+            len = Math.min(data.length - pos, len + 1);
+            out.write(data, pos, len);
+            pos += len;
+        }
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Walks block headers of a 4mc/4mz v1 file, checking that all blocks but last one have the given size.
+     * Returns the number of blocks.
+     */
+    static int countFullBlocks(byte[] compressed, int blockSize) {
+        java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(compressed);
+        int pos = 12, blocks = 0, lastSize = blockSize;
+        int uncompressedSize;
+        while ((uncompressedSize = bb.getInt(pos)) != 0) {
+            assertEquals(blockSize, lastSize);
+            lastSize = uncompressedSize;
+            pos += 12 + bb.getInt(pos + 4);
+            ++blocks;
+        }
+        return blocks;
+    }
+
+    static byte[] decompress(CompressionCodec codec, byte[] compressed) throws IOException {
+        CompressionInputStream in = codec.createInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
 }
@@ -41,7 +41,7 @@
 #include "lz4/lz4.h"
 #include "lz4/lz4hc.h"
 #include "lz4/lz4mc.h"
-#include "lz4/xxhash.h"
+#include "jnichecksum.h"
 
 
 #define EXCEPTION_STRING_MAXLEN 256
@@ -52,6 +52,15 @@ static jfieldID Lz4Compressor_uncompressedDirectBuf;
 static jfieldID Lz4Compressor_uncompressedDirectBufLen;
 static jfieldID Lz4Compressor_compressedDirectBuf;
 static jfieldID Lz4Compressor_directBufferSize;
+static jfieldID Lz4Compressor_state;
+static jfieldID Lz4Compressor_stateType;
+static jfieldID Lz4Compressor_checksumEnabled;
+static jfieldID Lz4Compressor_checksum;
+
+// kind of compression state held by a compressor, each compressor uses one only
+#define STATE_FAST 1
+#define STATE_MC   2
+#define STATE_HC   3
 
 
 JNIEXPORT void JNICALL
@@ -65,15 +74,57 @@ Java_com_fing_compression_fourmc_Lz4Compressor_initIDs(
   Lz4Compressor_uncompressedDirectBufLen = (*env)->GetFieldID(env, class, "uncompressedDirectBufLen", "I");
   Lz4Compressor_compressedDirectBuf = (*env)->GetFieldID(env, class, "compressedDirectBuf", "Ljava/nio/ByteBuffer;");
   Lz4Compressor_directBufferSize = (*env)->GetFieldID(env, class, "directBufferSize", "I");
+  Lz4Compressor_checksumEnabled = (*env)->GetFieldID(env, class, "checksumEnabled", "Z");
+  Lz4Compressor_checksum = (*env)->GetFieldID(env, class, "checksum", "I");
+  Lz4Compressor_state = (*env)->GetFieldID(env, class, "state", "J");
+  Lz4Compressor_stateType = (*env)->GetFieldID(env, class, "stateType", "I");
+
+}
+
 
+/*
+ * Returns the compression state kept by the java object across blocks, allocating it on first use.
+ * Compression functions fully reinitialize it for each block, so no per-block malloc is needed.
+ * Memory is owned by the java object and released through freeState.
+ */
+static void* getState(JNIEnv *env, jobject this, int type, int size)
+{
+    void* state = (void*)(size_t)(*env)->GetLongField(env, this, Lz4Compressor_state);
+    if (state != NULL && (*env)->GetIntField(env, this, Lz4Compressor_stateType) == type) {
+        return state;
+    }
+    free(state);
+    state = malloc(size);   // malloc alignment fits all LZ4 states
+    (*env)->SetLongField(env, this, Lz4Compressor_state, (jlong)(size_t)state);
+    (*env)->SetIntField(env, this, Lz4Compressor_stateType, state == NULL ? 0 : type);
+    if (state == NULL) {
+        THROW(env, "java/lang/OutOfMemoryError", "Cannot allocate LZ4 compression state");
+    }
+    return state;
 }
 
 
+/*
+ * When the java object asks for it, stores the XXH32 of the payload 4mc writes for the block just compressed:
+ * compressed data if smaller than the input, input otherwise. Data is hashed while still hot in cache.
+ */
+static void storeChecksum(JNIEnv *env, jobject this, const char* uncompressed_bytes, int uncompressed_len,
+                          const char* compressed_bytes, int compressed_len)
+{
+    if ((*env)->GetBooleanField(env, this, Lz4Compressor_checksumEnabled)) {
+        jint h32 = compressed_len < uncompressed_len
+                ? (jint)XXH32(compressed_bytes, compressed_len, 0)
+                : (jint)XXH32(uncompressed_bytes, uncompressed_len, 0);
+        (*env)->SetIntField(env, this, Lz4Compressor_checksum, h32);
+    }
+}
+
 JNIEXPORT jint JNICALL
 Java_com_fing_compression_fourmc_Lz4Compressor_compressBytesDirect(
   JNIEnv *env, jobject this)
 {
 	int r;
+	void* state;
 
 	jobject uncompressed_direct_buf = (*env)->GetObjectField(env, this, Lz4Compressor_uncompressedDirectBuf);
 	unsigned int uncompressed_direct_buf_len = (*env)->GetIntField(env, this, Lz4Compressor_uncompressedDirectBufLen);
@@ -87,14 +138,21 @@ Java_com_fing_compression_fourmc_Lz4Compressor_compressBytesDirect(
     	return (jint)0;
 	}
   
+    state = getState(env, this, STATE_FAST, LZ4_sizeofState());
+    if (state == NULL) {
+        return (jint)0;
+    }
+
     // Compress
-    r = LZ4_compress(uncompressed_bytes, compressed_bytes, uncompressed_direct_buf_len);
+    r = LZ4_compress_fast_extState(state, uncompressed_bytes, compressed_bytes, uncompressed_direct_buf_len,
+            LZ4_compressBound(uncompressed_direct_buf_len), 1);
 
     if (r > 0) {
         (*env)->SetIntField(env, this, Lz4Compressor_uncompressedDirectBufLen, 0);
+        storeChecksum(env, this, uncompressed_bytes, uncompressed_direct_buf_len, compressed_bytes, (int)r);
     } else {
         char exception_msg[EXCEPTION_STRING_MAXLEN];
-       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %d", "LZ4_compress", r);
+       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %d", "LZ4_compress_fast_extState", r);
 		PORTABLE_SNPRINTF_END(exception_msg, EXCEPTION_STRING_MAXLEN);
         THROW(env, "java/lang/InternalError", exception_msg);
     }
@@ -107,6 +165,7 @@ Java_com_fing_compression_fourmc_Lz4Compressor_compressBytesDirectMC(
   JNIEnv *env, jobject this)
 {
 	int r;
+	void* state;
     jobject uncompressed_direct_buf = (*env)->GetObjectField(env, this, Lz4Compressor_uncompressedDirectBuf);
     unsigned int uncompressed_direct_buf_len = (*env)->GetIntField(env, this, Lz4Compressor_uncompressedDirectBufLen);
 
@@ -119,14 +178,20 @@ Java_com_fing_compression_fourmc_Lz4Compressor_compressBytesDirectMC(
         return (jint)0;
     }
 
+    state = getState(env, this, STATE_MC, LZ4_sizeofStateMC());
+    if (state == NULL) {
+        return (jint)0;
+    }
+
     // Compress
-    r = LZ4_compressMC(uncompressed_bytes, compressed_bytes, uncompressed_direct_buf_len);
+    r = LZ4_compressMC_withStateMC(state, uncompressed_bytes, compressed_bytes, uncompressed_direct_buf_len);
 
     if (r > 0) {
         (*env)->SetIntField(env, this, Lz4Compressor_uncompressedDirectBufLen, 0);
+        storeChecksum(env, this, uncompressed_bytes, uncompressed_direct_buf_len, compressed_bytes, (int)r);
     } else {
         char exception_msg[EXCEPTION_STRING_MAXLEN];
-       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %d", "LZ4_compressMC", r);
+       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %d", "LZ4_compressMC_withStateMC", r);
 		PORTABLE_SNPRINTF_END(exception_msg, EXCEPTION_STRING_MAXLEN);
         THROW(env, "java/lang/InternalError", exception_msg);
     }
@@ -140,6 +205,7 @@ Java_com_fing_compression_fourmc_Lz4Compressor_compressBytesDirectHC(
   JNIEnv *env, jobject this, jint clevel)
 {
 	int r;
+	void* state;
     jobject uncompressed_direct_buf = (*env)->GetObjectField(env, this, Lz4Compressor_uncompressedDirectBuf);
     unsigned int uncompressed_direct_buf_len = (*env)->GetIntField(env, this, Lz4Compressor_uncompressedDirectBufLen);
 
@@ -152,14 +218,21 @@ Java_com_fing_compression_fourmc_Lz4Compressor_compressBytesDirectHC(
         return (jint)0;
     }
 
+    state = getState(env, this, STATE_HC, LZ4_sizeofStateHC());
+    if (state == NULL) {
+        return (jint)0;
+    }
+
     // Compress
-    r = LZ4_compressHC2(uncompressed_bytes, compressed_bytes, uncompressed_direct_buf_len, clevel);
+    r = LZ4_compress_HC_extStateHC(state, uncompressed_bytes, compressed_bytes, uncompressed_direct_buf_len,
+            LZ4_compressBound(uncompressed_direct_buf_len), clevel);
 
     if (r > 0) {
         (*env)->SetIntField(env, this, Lz4Compressor_uncompressedDirectBufLen, 0);
+        storeChecksum(env, this, uncompressed_bytes, uncompressed_direct_buf_len, compressed_bytes, (int)r);
     } else {
         char exception_msg[EXCEPTION_STRING_MAXLEN];
-       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %d", "LZ4_compressHC2", r);
+       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %d", "LZ4_compress_HC_extStateHC", r);
 		PORTABLE_SNPRINTF_END(exception_msg, EXCEPTION_STRING_MAXLEN);
         THROW(env, "java/lang/InternalError", exception_msg);
 	}
@@ -177,20 +250,11 @@ JNIEXPORT jint JNICALL Java_com_fing_compression_fourmc_Lz4Compressor_compressBo
 
 JNIEXPORT jint JNICALL Java_com_fing_compression_fourmc_Lz4Compressor_xxhash32
   (JNIEnv *env, jclass cls, jbyteArray buf, jint off, jint len, jint seed) {
-
-  char* in;
-  jint h32;
-
-  in = (char*) (*env)->GetPrimitiveArrayCritical(env, buf, 0);
-  if (in == NULL) {
-      return (jint)0;
-  }
-
-  h32 = XXH32(in + off, len, seed);
-
-  (*env)->ReleasePrimitiveArrayCritical(env, buf, in, 0);
-
-  return h32;
+  return xxhash32Array(env, buf, off, len, seed);
 }
 
 
+JNIEXPORT void JNICALL Java_com_fing_compression_fourmc_Lz4Compressor_freeState
+  (JNIEnv *env, jclass cls, jlong state) {
+    free((void*)(size_t)state);
+}
@@ -41,7 +41,7 @@
 #include "lz4/lz4.h"
 #include "lz4/lz4hc.h"
 #include "lz4/lz4mc.h"
-#include "lz4/xxhash.h"
+#include "jnichecksum.h"
 
 #define EXCEPTION_STRING_MAXLEN 256
 
@@ -50,6 +50,8 @@ static jfieldID Lz4Decompressor_compressedDirectBuf;
 static jfieldID Lz4Decompressor_compressedDirectBufLen;
 static jfieldID Lz4Decompressor_uncompressedDirectBuf;
 static jfieldID Lz4Decompressor_directBufferSize;
+static jfieldID Lz4Decompressor_checksumPending;
+static jfieldID Lz4Decompressor_expectedChecksum;
 
 
 
@@ -61,6 +63,8 @@ Java_com_fing_compression_fourmc_Lz4Decompressor_initIDs(JNIEnv *env, jclass cla
   Lz4Decompressor_compressedDirectBufLen = (*env)->GetFieldID(env, class, "compressedDirectBufLen", "I");
   Lz4Decompressor_uncompressedDirectBuf = (*env)->GetFieldID(env, class, "uncompressedDirectBuf", "Ljava/nio/Buffer;");
   Lz4Decompressor_directBufferSize = (*env)->GetFieldID(env, class, "directBufferSize", "I");
+  Lz4Decompressor_checksumPending = (*env)->GetFieldID(env, class, "checksumPending", "Z");
+  Lz4Decompressor_expectedChecksum = (*env)->GetFieldID(env, class, "expectedChecksum", "I");
 }
 
 
@@ -83,7 +87,17 @@ Java_com_fing_compression_fourmc_Lz4Decompressor_decompressBytesDirect(
  	if (uncompressed_bytes == 0 || compressed_bytes == 0) {
  	    return (jint)0;
 	}
-	
+
+    // block checksum, verified on the same memory before decoding it
+    if ((*env)->GetBooleanField(env, this, Lz4Decompressor_checksumPending)) {
+        (*env)->SetBooleanField(env, this, Lz4Decompressor_checksumPending, JNI_FALSE);
+        if ((jint)XXH32(compressed_bytes, compressed_direct_buf_len, 0) !=
+                (*env)->GetIntField(env, this, Lz4Decompressor_expectedChecksum)) {
+            THROW(env, "java/io/IOException", "Corrupted compressed block (invalid checksum)");
+            return (jint)0;
+        }
+    }
+
 	// safe decompress
     outputSize = LZ4_decompress_safe(compressed_bytes, uncompressed_bytes, compressed_direct_buf_len, uncompressed_direct_buf_len);
 
@@ -101,20 +115,18 @@ Java_com_fing_compression_fourmc_Lz4Decompressor_decompressBytesDirect(
 
 JNIEXPORT jint JNICALL Java_com_fing_compression_fourmc_Lz4Decompressor_xxhash32
   (JNIEnv *env, jclass cls, jbyteArray buf, jint off, jint len, jint seed) {
+  return xxhash32Array(env, buf, off, len, seed);
+}
 
-  char* in;
-  jint h32;
+JNIEXPORT jint JNICALL Java_com_fing_compression_fourmc_Lz4Decompressor_xxhash32Direct
+  (JNIEnv *env, jclass cls, jobject buf, jint off, jint len, jint seed) {
 
-  in = (char*) (*env)->GetPrimitiveArrayCritical(env, buf, 0);
+  const char* in = (const char*) (*env)->GetDirectBufferAddress(env, buf);
   if (in == NULL) {
       return (jint)0;
   }
 
-  h32 = XXH32(in + off, len, seed);
-
-  (*env)->ReleasePrimitiveArrayCritical(env, buf, in, 0);
-
-  return h32;
+  return XXH32(in + off, len, seed);
 }
 
 
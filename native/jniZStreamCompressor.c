@@ -82,10 +82,28 @@ JNIEXPORT jint JNICALL Java_com_fing_compression_fourmc_zstd_ZstdStreamCompresso
  * Class:     com_hadoop_compression_fourmc_zstd_ZstdStreamCompressor
  * Method:    initCStream
  * Signature: (JI)I
+ *
+ * Starts a new frame; other parameters, as the number of workers, are kept.
  */
 JNIEXPORT jint JNICALL Java_com_fing_compression_fourmc_zstd_ZstdStreamCompressor_initCStream
   (JNIEnv *env, jclass obj, jlong stream, jint level) {
-    return (jint) ZSTD_initCStream((ZSTD_CStream *) stream, level);
+    ZSTD_CStream *zcs = (ZSTD_CStream *) stream;
+    size_t r = ZSTD_CCtx_reset(zcs, ZSTD_reset_session_only);
+    if (ZSTD_isError(r)) return (jint) r;
+    return (jint) ZSTD_CCtx_setParameter(zcs, ZSTD_c_compressionLevel, level);
+}
+
+/*
+ * Class:     com_hadoop_compression_fourmc_zstd_ZstdStreamCompressor
+ * Method:    setCStreamWorkers
+ * Signature: (JI)I
+ *
+ * nb_workers > 0 enables zstd multi-threaded compression: input is compressed
+ * by worker threads while the caller keeps feeding the stream.
+ */
+JNIEXPORT jint JNICALL Java_com_fing_compression_fourmc_zstd_ZstdStreamCompressor_setCStreamWorkers
+  (JNIEnv *env, jclass obj, jlong stream, jint nb_workers) {
+    return (jint) ZSTD_CCtx_setParameter((ZSTD_CStream *) stream, ZSTD_c_nbWorkers, nb_workers);
 }
 
 /*
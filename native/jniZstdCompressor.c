@@ -43,7 +43,9 @@ ZSTD:
 
 // LZ4 and ZSTD
 #include "zstd/zstd.h"
-#include "lz4/xxhash.h"
+#include "zstd/zstd_errors.h"
+#include "zstd/zdict.h"
+#include "jnichecksum.h"
 
 
 #define EXCEPTION_STRING_MAXLEN 256
@@ -54,6 +56,14 @@ static jfieldID ZstdCompressor_uncompressedDirectBuf;
 static jfieldID ZstdCompressor_uncompressedDirectBufLen;
 static jfieldID ZstdCompressor_compressedDirectBuf;
 static jfieldID ZstdCompressor_directBufferSize;
+static jfieldID ZstdCompressor_windowLog;
+static jfieldID ZstdCompressor_longDistanceMatching;
+static jfieldID ZstdCompressor_dictionary;
+static jfieldID ZstdCompressor_cdict;
+static jfieldID ZstdCompressor_cdictLevel;
+static jfieldID ZstdCompressor_cctx;
+static jfieldID ZstdCompressor_checksumEnabled;
+static jfieldID ZstdCompressor_checksum;
 
 
 JNIEXPORT void JNICALL
@@ -67,10 +77,127 @@ Java_com_fing_compression_fourmc_ZstdCompressor_initIDs(
   ZstdCompressor_uncompressedDirectBufLen = (*env)->GetFieldID(env, class, "uncompressedDirectBufLen", "I");
   ZstdCompressor_compressedDirectBuf = (*env)->GetFieldID(env, class, "compressedDirectBuf", "Ljava/nio/ByteBuffer;");
   ZstdCompressor_directBufferSize = (*env)->GetFieldID(env, class, "directBufferSize", "I");
+  ZstdCompressor_checksumEnabled = (*env)->GetFieldID(env, class, "checksumEnabled", "Z");
+  ZstdCompressor_checksum = (*env)->GetFieldID(env, class, "checksum", "I");
+  ZstdCompressor_windowLog = (*env)->GetFieldID(env, class, "windowLog", "I");
+  ZstdCompressor_longDistanceMatching = (*env)->GetFieldID(env, class, "longDistanceMatching", "Z");
+  ZstdCompressor_dictionary = (*env)->GetFieldID(env, class, "dictionary", "[B");
+  ZstdCompressor_cdict = (*env)->GetFieldID(env, class, "cdict", "J");
+  ZstdCompressor_cdictLevel = (*env)->GetFieldID(env, class, "cdictLevel", "I");
+  ZstdCompressor_cctx = (*env)->GetFieldID(env, class, "cctx", "J");
 
 }
 
 
+/*
+ * Returns the digested dictionary for the given level, building it on first use or when level changes.
+ * The ZSTD_CDict is owned by the java object and released through freeCDict.
+ */
+static ZSTD_CDict* getCDict(JNIEnv *env, jobject this, jbyteArray dictionary, int level)
+{
+    ZSTD_CDict* cdict = (ZSTD_CDict*)(size_t)(*env)->GetLongField(env, this, ZstdCompressor_cdict);
+    jbyte* dict;
+
+    if (cdict != NULL && (*env)->GetIntField(env, this, ZstdCompressor_cdictLevel) == level) {
+        return cdict;
+    }
+    ZSTD_freeCDict(cdict);
+
+    dict = (*env)->GetByteArrayElements(env, dictionary, NULL);
+    if (dict == NULL) {
+        cdict = NULL;
+    } else {
+        cdict = ZSTD_createCDict(dict, (*env)->GetArrayLength(env, dictionary), level);
+        (*env)->ReleaseByteArrayElements(env, dictionary, dict, JNI_ABORT);
+    }
+    (*env)->SetLongField(env, this, ZstdCompressor_cdict, (jlong)(size_t)cdict);
+    (*env)->SetIntField(env, this, ZstdCompressor_cdictLevel, level);
+    return cdict;
+}
+
+
+/*
+ * Returns the compression context kept by the java object across blocks, creating it on first use.
+ * Reusing it avoids allocating and initializing zstd tables for each block.
+ * The ZSTD_CCtx is owned by the java object and released through freeCCtx.
+ */
+static ZSTD_CCtx* getCCtx(JNIEnv *env, jobject this)
+{
+    ZSTD_CCtx* cctx = (ZSTD_CCtx*)(size_t)(*env)->GetLongField(env, this, ZstdCompressor_cctx);
+    if (cctx == NULL) {
+        cctx = ZSTD_createCCtx();
+        (*env)->SetLongField(env, this, ZstdCompressor_cctx, (jlong)(size_t)cctx);
+    }
+    return cctx;
+}
+
+
+/*
+ * Compresses a whole block at the given level, with the context of the compressor.
+ * With default settings this is the same as ZSTD_compress, otherwise parameters are set on the context
+ * to apply trained dictionary, window log and long distance matching, useful with big blocks (4mz v2).
+ */
+static size_t compressBlock(JNIEnv *env, jobject this, void* dst, size_t dstCapacity,
+                            const void* src, size_t srcSize, int level)
+{
+    size_t r;
+    ZSTD_CCtx* cctx;
+    ZSTD_CDict* cdict = NULL;
+    int windowLog = (*env)->GetIntField(env, this, ZstdCompressor_windowLog);
+    jboolean ldm = (*env)->GetBooleanField(env, this, ZstdCompressor_longDistanceMatching);
+    jbyteArray dictionary = (jbyteArray)(*env)->GetObjectField(env, this, ZstdCompressor_dictionary);
+
+    cctx = getCCtx(env, this);
+    if (cctx == NULL) {
+        return (size_t)(0 - ZSTD_error_memory_allocation);
+    }
+
+    if (windowLog == 0 && !ldm && dictionary == NULL) {
+        return ZSTD_compressCCtx(cctx, dst, dstCapacity, src, srcSize, level);
+    }
+
+    if (dictionary != NULL) {
+        cdict = getCDict(env, this, dictionary, level);
+        if (cdict == NULL) {
+            return (size_t)(0 - ZSTD_error_dictionaryCreation_failed);
+        }
+    }
+
+    r = ZSTD_CCtx_reset(cctx, ZSTD_reset_session_and_parameters);
+    if (!ZSTD_isError(r)) {
+        r = ZSTD_CCtx_setParameter(cctx, ZSTD_c_compressionLevel, level);
+    }
+    if (!ZSTD_isError(r) && cdict != NULL) {
+        r = ZSTD_CCtx_refCDict(cctx, cdict);
+    }
+    if (!ZSTD_isError(r) && windowLog != 0) {
+        r = ZSTD_CCtx_setParameter(cctx, ZSTD_c_windowLog, windowLog);
+    }
+    if (!ZSTD_isError(r) && ldm) {
+        r = ZSTD_CCtx_setParameter(cctx, ZSTD_c_enableLongDistanceMatching, 1);
+    }
+    if (!ZSTD_isError(r)) {
+        r = ZSTD_compress2(cctx, dst, dstCapacity, src, srcSize);
+    }
+    return r;
+}
+
+
+/*
+ * When the java object asks for it, stores the XXH32 of the payload 4mc writes for the block just compressed:
+ * compressed data if smaller than the input, input otherwise. Data is hashed while still hot in cache.
+ */
+static void storeChecksum(JNIEnv *env, jobject this, const char* uncompressed_bytes, int uncompressed_len,
+                          const char* compressed_bytes, int compressed_len)
+{
+    if ((*env)->GetBooleanField(env, this, ZstdCompressor_checksumEnabled)) {
+        jint h32 = compressed_len < uncompressed_len
+                ? (jint)XXH32(compressed_bytes, compressed_len, 0)
+                : (jint)XXH32(uncompressed_bytes, uncompressed_len, 0);
+        (*env)->SetIntField(env, this, ZstdCompressor_checksum, h32);
+    }
+}
+
 JNIEXPORT jint JNICALL
 Java_com_fing_compression_fourmc_ZstdCompressor_compressBytesDirect(
   JNIEnv *env, jobject this)
@@ -90,14 +217,15 @@ Java_com_fing_compression_fourmc_ZstdCompressor_compressBytesDirect(
 	}
   
     // Compress
-	r = ZSTD_compress(compressed_bytes, 1024*1024*1024 /**enforced before in Java code**/,
+	r = compressBlock(env, this, compressed_bytes, 1024*1024*1024 /**enforced before in Java code**/,
 			uncompressed_bytes, uncompressed_direct_buf_len, 1);
 
 	if (!ZSTD_isError(r)) {
         (*env)->SetIntField(env, this, ZstdCompressor_uncompressedDirectBufLen, 0);
+        storeChecksum(env, this, uncompressed_bytes, uncompressed_direct_buf_len, compressed_bytes, (int)r);
     } else {
         char exception_msg[EXCEPTION_STRING_MAXLEN];
-       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %lu", "ZSTD_compress", r);
+       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %s", "ZSTD_compress", ZSTD_getErrorName(r));
 		PORTABLE_SNPRINTF_END(exception_msg, EXCEPTION_STRING_MAXLEN);
         THROW(env, "java/lang/InternalError", exception_msg);
     }
@@ -123,14 +251,15 @@ Java_com_fing_compression_fourmc_ZstdCompressor_compressBytesDirectMC(
     }
 
     // Compress
-	r = ZSTD_compress(compressed_bytes, 1024*1024*1024 /**enforced before in Java code**/,
-				uncompressed_bytes, uncompressed_direct_buf_len, 3);
+	r = compressBlock(env, this, compressed_bytes, 1024*1024*1024 /**enforced before in Java code**/,
+			uncompressed_bytes, uncompressed_direct_buf_len, 3);
 
 	if (!ZSTD_isError(r)) {
         (*env)->SetIntField(env, this, ZstdCompressor_uncompressedDirectBufLen, 0);
+        storeChecksum(env, this, uncompressed_bytes, uncompressed_direct_buf_len, compressed_bytes, (int)r);
     } else {
         char exception_msg[EXCEPTION_STRING_MAXLEN];
-       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %lu", "ZSTD_compress", r);
+       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %s", "ZSTD_compress", ZSTD_getErrorName(r));
 		PORTABLE_SNPRINTF_END(exception_msg, EXCEPTION_STRING_MAXLEN);
         THROW(env, "java/lang/InternalError", exception_msg);
     }
@@ -157,14 +286,15 @@ Java_com_fing_compression_fourmc_ZstdCompressor_compressBytesDirectHC(
     }
 
     // Compress
-	r = ZSTD_compress(compressed_bytes, 1024*1024*1024 /**enforced before in Java code**/,
-				uncompressed_bytes, uncompressed_direct_buf_len, clevel);
+	r = compressBlock(env, this, compressed_bytes, 1024*1024*1024 /**enforced before in Java code**/,
+			uncompressed_bytes, uncompressed_direct_buf_len, clevel);
 
 	if (!ZSTD_isError(r)) {
         (*env)->SetIntField(env, this, ZstdCompressor_uncompressedDirectBufLen, 0);
+        storeChecksum(env, this, uncompressed_bytes, uncompressed_direct_buf_len, compressed_bytes, (int)r);
     } else {
         char exception_msg[EXCEPTION_STRING_MAXLEN];
-       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %lu", "ZSTD_compress", r);
+       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %s", "ZSTD_compress", ZSTD_getErrorName(r));
 		PORTABLE_SNPRINTF_END(exception_msg, EXCEPTION_STRING_MAXLEN);
         THROW(env, "java/lang/InternalError", exception_msg);
 	}
@@ -182,20 +312,69 @@ JNIEXPORT jint JNICALL Java_com_fing_compression_fourmc_ZstdCompressor_compressB
 
 JNIEXPORT jint JNICALL Java_com_fing_compression_fourmc_ZstdCompressor_xxhash32
   (JNIEnv *env, jclass cls, jbyteArray buf, jint off, jint len, jint seed) {
+  return xxhash32Array(env, buf, off, len, seed);
+}
+
+
+JNIEXPORT void JNICALL Java_com_fing_compression_fourmc_ZstdCompressor_freeCCtx
+  (JNIEnv *env, jclass cls, jlong cctx) {
+    ZSTD_freeCCtx((ZSTD_CCtx*)(size_t)cctx);
+}
+
 
-  char* in;
-  jint h32;
+JNIEXPORT void JNICALL Java_com_fing_compression_fourmc_ZstdCompressor_freeCDict
+  (JNIEnv *env, jclass cls, jlong cdict) {
+    ZSTD_freeCDict((ZSTD_CDict*)(size_t)cdict);
+}
 
-  in = (char*) (*env)->GetPrimitiveArrayCritical(env, buf, 0);
-  if (in == NULL) {
+
+JNIEXPORT jint JNICALL Java_com_fing_compression_fourmc_ZstdCompressor_trainDictionary
+  (JNIEnv *env, jclass cls, jbyteArray dict, jbyteArray samples, jintArray sampleSizes) {
+
+  size_t r;
+  unsigned int i;
+  jsize count = (*env)->GetArrayLength(env, sampleSizes);
+  jsize dictCapacity = (*env)->GetArrayLength(env, dict);
+  jbyte* samplesBuf;
+  jbyte* dictBuf;
+  jint* sizes;
+  size_t* sizesT = (size_t*)malloc(sizeof(size_t) * (count > 0 ? count : 1));
+
+  if (sizesT == NULL) {
+      THROW(env, "java/lang/OutOfMemoryError", "Cannot allocate dictionary sample sizes");
+      return (jint)0;
+  }
+  sizes = (*env)->GetIntArrayElements(env, sampleSizes, NULL);
+  if (sizes == NULL) {
+      free(sizesT);
+      return (jint)0;
+  }
+  for (i = 0; i < (unsigned int)count; ++i) {
+      sizesT[i] = (size_t)sizes[i];
+  }
+  (*env)->ReleaseIntArrayElements(env, sampleSizes, sizes, JNI_ABORT);
+
+  samplesBuf = (*env)->GetByteArrayElements(env, samples, NULL);
+  dictBuf = (*env)->GetByteArrayElements(env, dict, NULL);
+  if (samplesBuf == NULL || dictBuf == NULL) {
+      if (samplesBuf != NULL) (*env)->ReleaseByteArrayElements(env, samples, samplesBuf, JNI_ABORT);
+      if (dictBuf != NULL) (*env)->ReleaseByteArrayElements(env, dict, dictBuf, JNI_ABORT);
+      free(sizesT);
       return (jint)0;
   }
 
-  h32 = XXH32(in + off, len, seed);
+  r = ZDICT_trainFromBuffer(dictBuf, dictCapacity, samplesBuf, sizesT, (unsigned int)count);
 
-  (*env)->ReleasePrimitiveArrayCritical(env, buf, in, 0);
+  (*env)->ReleaseByteArrayElements(env, samples, samplesBuf, JNI_ABORT);
+  (*env)->ReleaseByteArrayElements(env, dict, dictBuf, 0);
+  free(sizesT);
 
-  return h32;
+  if (ZDICT_isError(r)) {
+      char exception_msg[EXCEPTION_STRING_MAXLEN];
+      PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %s", "ZDICT_trainFromBuffer", ZDICT_getErrorName(r));
+      PORTABLE_SNPRINTF_END(exception_msg, EXCEPTION_STRING_MAXLEN);
+      THROW(env, "java/lang/InternalError", exception_msg);
+      return (jint)0;
+  }
+  return (jint)r;
 }
-
-
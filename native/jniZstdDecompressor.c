@@ -43,7 +43,8 @@
 
 // LZ4 and ZSTD
 #include "zstd/zstd.h"
-#include "lz4/xxhash.h"
+#include "zstd/zstd_errors.h"
+#include "jnichecksum.h"
 
 #define EXCEPTION_STRING_MAXLEN 256
 
@@ -52,6 +53,11 @@ static jfieldID ZstdDecompressor_compressedDirectBuf;
 static jfieldID ZstdDecompressor_compressedDirectBufLen;
 static jfieldID ZstdDecompressor_uncompressedDirectBuf;
 static jfieldID ZstdDecompressor_directBufferSize;
+static jfieldID ZstdDecompressor_checksumPending;
+static jfieldID ZstdDecompressor_expectedChecksum;
+static jfieldID ZstdDecompressor_dictionary;
+static jfieldID ZstdDecompressor_ddict;
+static jfieldID ZstdDecompressor_dctx;
 
 
 
@@ -63,6 +69,60 @@ Java_com_fing_compression_fourmc_ZstdDecompressor_initIDs(JNIEnv *env, jclass cl
   ZstdDecompressor_compressedDirectBufLen = (*env)->GetFieldID(env, class, "compressedDirectBufLen", "I");
   ZstdDecompressor_uncompressedDirectBuf = (*env)->GetFieldID(env, class, "uncompressedDirectBuf", "Ljava/nio/Buffer;");
   ZstdDecompressor_directBufferSize = (*env)->GetFieldID(env, class, "directBufferSize", "I");
+  ZstdDecompressor_checksumPending = (*env)->GetFieldID(env, class, "checksumPending", "Z");
+  ZstdDecompressor_expectedChecksum = (*env)->GetFieldID(env, class, "expectedChecksum", "I");
+  ZstdDecompressor_dictionary = (*env)->GetFieldID(env, class, "dictionary", "[B");
+  ZstdDecompressor_ddict = (*env)->GetFieldID(env, class, "ddict", "J");
+  ZstdDecompressor_dctx = (*env)->GetFieldID(env, class, "dctx", "J");
+}
+
+
+/*
+ * Returns the decompression context kept by the java object across blocks, creating it on first use.
+ * The ZSTD_DCtx is owned by the java object and released through freeDCtx.
+ */
+static ZSTD_DCtx* getDCtx(JNIEnv *env, jobject this)
+{
+    ZSTD_DCtx* dctx = (ZSTD_DCtx*)(size_t)(*env)->GetLongField(env, this, ZstdDecompressor_dctx);
+    if (dctx == NULL) {
+        dctx = ZSTD_createDCtx();
+        (*env)->SetLongField(env, this, ZstdDecompressor_dctx, (jlong)(size_t)dctx);
+    }
+    return dctx;
+}
+
+
+/*
+ * Decompresses a whole block, using the trained dictionary of the file if any.
+ * The ZSTD_DDict is built on first use and owned by the java object, released through freeDDict.
+ */
+static size_t decompressBlock(JNIEnv *env, jobject this, void* dst, size_t dstCapacity, const void* src, size_t srcSize)
+{
+    ZSTD_DDict* ddict;
+    ZSTD_DCtx* dctx = getDCtx(env, this);
+    jbyteArray dictionary = (jbyteArray)(*env)->GetObjectField(env, this, ZstdDecompressor_dictionary);
+
+    if (dctx == NULL) {
+        return (size_t)(0 - ZSTD_error_memory_allocation);
+    }
+    if (dictionary == NULL) {
+        return ZSTD_decompressDCtx(dctx, dst, dstCapacity, src, srcSize);
+    }
+
+    ddict = (ZSTD_DDict*)(size_t)(*env)->GetLongField(env, this, ZstdDecompressor_ddict);
+    if (ddict == NULL) {
+        jbyte* dict = (*env)->GetByteArrayElements(env, dictionary, NULL);
+        if (dict == NULL) {
+            return (size_t)(0 - ZSTD_error_memory_allocation);
+        }
+        ddict = ZSTD_createDDict(dict, (*env)->GetArrayLength(env, dictionary));
+        (*env)->ReleaseByteArrayElements(env, dictionary, dict, JNI_ABORT);
+        if (ddict == NULL) {
+            return (size_t)(0 - ZSTD_error_dictionary_corrupted);
+        }
+        (*env)->SetLongField(env, this, ZstdDecompressor_ddict, (jlong)(size_t)ddict);
+    }
+    return ZSTD_decompress_usingDDict(dctx, dst, dstCapacity, src, srcSize, ddict);
 }
 
 
@@ -70,7 +130,7 @@ JNIEXPORT jint JNICALL
 Java_com_fing_compression_fourmc_ZstdDecompressor_decompressBytesDirect(
 	JNIEnv *env, jobject this) {
 
-	int outputSize;
+	size_t outputSize;
 
 	// Get members of ZstdDecompressor
 	jobject compressed_direct_buf = (*env)->GetObjectField(env, this, ZstdDecompressor_compressedDirectBuf);
@@ -85,38 +145,57 @@ Java_com_fing_compression_fourmc_ZstdDecompressor_decompressBytesDirect(
  	if (uncompressed_bytes == 0 || compressed_bytes == 0) {
  	    return (jint)0;
 	}
-	
+
+    // block checksum, verified on the same memory before decoding it
+    if ((*env)->GetBooleanField(env, this, ZstdDecompressor_checksumPending)) {
+        (*env)->SetBooleanField(env, this, ZstdDecompressor_checksumPending, JNI_FALSE);
+        if ((jint)XXH32(compressed_bytes, compressed_direct_buf_len, 0) !=
+                (*env)->GetIntField(env, this, ZstdDecompressor_expectedChecksum)) {
+            THROW(env, "java/io/IOException", "Corrupted compressed block (invalid checksum)");
+            return (jint)0;
+        }
+    }
+
 	// safe decompress
-    outputSize = ZSTD_decompress(uncompressed_bytes, uncompressed_direct_buf_len, compressed_bytes, compressed_direct_buf_len);
+    outputSize = decompressBlock(env, this, uncompressed_bytes, uncompressed_direct_buf_len,
+                                 compressed_bytes, compressed_direct_buf_len);
 
-    if (outputSize >= 0) {
+    if (!ZSTD_isError(outputSize)) {
         (*env)->SetIntField(env, this, ZstdDecompressor_compressedDirectBufLen, 0);
     } else {
         char exception_msg[EXCEPTION_STRING_MAXLEN];
-       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "LZ4_decompress_safe returned: %d", outputSize);
+       	PORTABLE_SNPRINTF_START(exception_msg, EXCEPTION_STRING_MAXLEN, "%s returned: %s", "ZSTD_decompress", ZSTD_getErrorName(outputSize));
 		PORTABLE_SNPRINTF_END(exception_msg, EXCEPTION_STRING_MAXLEN);
         THROW(env, "java/lang/InternalError", exception_msg);
   }
   
-  return outputSize;
+  return (jint)outputSize;
 }
 
 JNIEXPORT jint JNICALL Java_com_fing_compression_fourmc_ZstdDecompressor_xxhash32
   (JNIEnv *env, jclass cls, jbyteArray buf, jint off, jint len, jint seed) {
+  return xxhash32Array(env, buf, off, len, seed);
+}
 
-  char* in;
-  jint h32;
+JNIEXPORT jint JNICALL Java_com_fing_compression_fourmc_ZstdDecompressor_xxhash32Direct
+  (JNIEnv *env, jclass cls, jobject buf, jint off, jint len, jint seed) {
 
-  in = (char*) (*env)->GetPrimitiveArrayCritical(env, buf, 0);
+  const char* in = (const char*) (*env)->GetDirectBufferAddress(env, buf);
   if (in == NULL) {
       return (jint)0;
   }
 
-  h32 = XXH32(in + off, len, seed);
+  return XXH32(in + off, len, seed);
+}
 
-  (*env)->ReleasePrimitiveArrayCritical(env, buf, in, 0);
 
-  return h32;
+JNIEXPORT void JNICALL Java_com_fing_compression_fourmc_ZstdDecompressor_freeDCtx
+  (JNIEnv *env, jclass cls, jlong dctx) {
+    ZSTD_freeDCtx((ZSTD_DCtx*)(size_t)dctx);
 }
 
 
+JNIEXPORT void JNICALL Java_com_fing_compression_fourmc_ZstdDecompressor_freeDDict
+  (JNIEnv *env, jclass cls, jlong ddict) {
+    ZSTD_freeDDict((ZSTD_DDict*)(size_t)ddict);
+}
@@ -0,0 +1,67 @@
+/**
+    4MC
+    Copyright (c) 2014, Carlo Medas
+    BSD 2-Clause License (http://www.opensource.org/licenses/bsd-license.php)
+
+    Redistribution and use in source and binary forms, with or without modification,
+    are permitted provided that the following conditions are met:
+
+    * Redistributions of source code must retain the above copyright notice, this
+      list of conditions and the following disclaimer.
+
+    * Redistributions in binary form must reproduce the above copyright notice, this
+      list of conditions and the following disclaimer in the documentation and/or
+      other materials provided with the distribution.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+    ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+    ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+    ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+  You can contact 4MC author at :
+      - 4MC source repository : https://github.com/carlomedas/4mc
+
+  LZ4 - Copyright (C) 2011-2014, Yann Collet - BSD 2-Clause License.
+  You can contact LZ4 lib author at :
+      - LZ4 source repository : http://code.google.com/p/lz4/
+**/
+ 
+#ifndef __FOURMC_JNICHECKSUM_H
+#define __FOURMC_JNICHECKSUM_H
+
+#include <jni.h>
+
+#define XXH_STATIC_LINKING_ONLY
+#include "lz4/xxhash.h"
+
+/* Java arrays are hashed through a small stack copy: GetPrimitiveArrayCritical would hold the GC locker. */
+#define XXH32_ARRAY_CHUNK 16384
+
+/*
+ * XXH32 of len bytes of a java byte array starting at off, as XXH32() over the same bytes would return.
+ */
+static jint xxhash32Array(JNIEnv *env, jbyteArray buf, jint off, jint len, jint seed) {
+  XXH32_state_t state;
+  jbyte chunk[XXH32_ARRAY_CHUNK];
+
+  XXH32_reset(&state, seed);
+  while (len > 0) {
+      jint n = len < XXH32_ARRAY_CHUNK ? len : XXH32_ARRAY_CHUNK;
+      (*env)->GetByteArrayRegion(env, buf, off, n, chunk);
+      if ((*env)->ExceptionCheck(env)) {
+          return (jint)0;
+      }
+      XXH32_update(&state, chunk, n);
+      off += n;
+      len -= n;
+  }
+  return (jint)XXH32_digest(&state);
+}
+
+#endif // __FOURMC_JNICHECKSUM_H